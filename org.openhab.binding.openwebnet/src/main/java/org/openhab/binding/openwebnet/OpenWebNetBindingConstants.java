@@ -118,6 +118,7 @@ public class OpenWebNetBindingConstants {
     public static final String CHANNEL_SWITCH_01 = "switch_01";
     public static final String CHANNEL_SWITCH_02 = "switch_02";
     public static final String CHANNEL_BRIGHTNESS = "brightness";
+    public static final String CHANNEL_RAMP = "ramp";
     // automation
     public static final String CHANNEL_SHUTTER = "shutter";
     // thermo
@@ -139,25 +140,64 @@ public class OpenWebNetBindingConstants {
     // scenario
     public static final String CHANNEL_SCENARIO_BUTTON = "button_";
     public static final String CHANNEL_TYPE_SCENARIO_BUTTON = "scenarioButton";
+    public static final String CHANNEL_SCENARIO_BUTTON_EVENT = "buttonEvent";
+    public static final String CHANNEL_TYPE_SCENARIO_BUTTON_EVENT = "scenarioButtonEvent";
 
     public static final String CHANNEL_DRY_CONTACT_IR = "sensor";
 
+    // bridge channels
+    public static final String CHANNEL_SEND_FRAMES = "sendFrames";
+    public static final String CHANNEL_SCENE_SNAPSHOT = "sceneSnapshot";
+    public static final String CHANNEL_SCENE_RESTORE = "sceneRestore";
+
     // devices config properties
     public static final String CONFIG_PROPERTY_WHERE = "where";
     public static final String CONFIG_PROPERTY_SHUTTER_RUN = "shutterRun";
+    public static final String CONFIG_PROPERTY_SHUTTER_RUN_UP = "shutterRunUp";
     public static final String CONFIG_PROPERTY_SCENARIO_BUTTONS = "buttons";
     public static final String CONFIG_PROPERTY_ADDRTYPE = "addrtype";
+    public static final String CONFIG_PROPERTY_GROUPS = "groups";
     // BUS gw config properties
     public static final String CONFIG_PROPERTY_SERIAL_PORT = "serialPort";
     public static final String CONFIG_PROPERTY_HOST = "host";
     public static final String CONFIG_PROPERTY_PORT = "port";
     public static final String CONFIG_PROPERTY_PASSWD = "passwd";
     public static final String CONFIG_PROPERTY_DISCOVERY_ACTIVATION = "discoveryByActivation";
+    public static final String CONFIG_PROPERTY_FRAME_FILTER = "frameFilter";
+    public static final String CONFIG_PROPERTY_COALESCING_WINDOW = "coalescingWindow";
+    public static final String CONFIG_PROPERTY_GROUP_COMMAND_WINDOW = "groupCommandWindow";
+    public static final String CONFIG_PROPERTY_COMPLETE_GROUPS = "completeGroups";
+    public static final String CONFIG_PROPERTY_REFRESH_WINDOW = "refreshWindow";
+    public static final String CONFIG_PROPERTY_STARTUP_RATE = "startupRate";
+    public static final String CONFIG_PROPERTY_SHUTTER_POSITION_RATE = "shutterPositionRate";
+    public static final String CONFIG_PROPERTY_RAMP_FRAME_RATE = "rampFrameRate";
     // properties
     public static final String PROPERTY_OWNID = "ownId";
     public static final String PROPERTY_FIRMWARE = "firmwareVersion";
     public static final String PROPERTY_MODEL = "model";
     public static final String PROPERTY_SERIAL_NO = "serialNumber";
+    public static final String PROPERTY_ADDRESS_FORMS = "addressForms";
+    public static final String PROPERTY_STARTUP_PROGRESS = "startupProgress";
+    public static final String PROPERTY_POSITION_ACCURACY = "positionAccuracy";
+    public static final String PROPERTY_CALIBRATION_QUALITY = "calibrationQuality";
+    // bridge statistics properties
+    public static final String PROPERTY_STATS_DISPATCH = "statsDispatch";
+    public static final String PROPERTY_STATS_FRAME_FILTER = "statsFrameFilter";
+    public static final String PROPERTY_STATS_COMMANDS = "statsCommands";
+    public static final String PROPERTY_STATS_QUEUE_DELAY = "statsQueueDelay";
+    public static final String PROPERTY_STATS_COALESCING = "statsCoalescing";
+    public static final String PROPERTY_STATS_GROUP_COMMANDS = "statsGroupCommands";
+    public static final String PROPERTY_STATS_ADDRESS_FORMS = "statsAddressForms";
+    public static final String PROPERTY_STATS_RESYNC = "statsResync";
+    public static final String PROPERTY_STATS_REFRESH = "statsRefresh";
+    public static final String PROPERTY_STATS_TIMERS = "statsTimers";
+    public static final String PROPERTY_STATS_SNAPSHOT = "statsSnapshot";
+    public static final String PROPERTY_STATS_SHADOW = "statsShadow";
+    public static final String PROPERTY_STATS_ENERGY = "statsEnergy";
+    public static final String PROPERTY_STATS_SHUTTERS = "statsShutters";
+    public static final String PROPERTY_STATS_RAMPS = "statsRamps";
+    public static final String PROPERTY_STATS_SCENES = "statsScenes";
+    public static final String PROPERTY_STATS_BUTTONS = "statsButtons";
     // group command type addrtype
     public static final int PARAMETER_TYPE_POINT_TO_POINT = 1;
     public static final int PARAMETER_TYPE_AREA = 2;
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * The {@link OpenWebNetAddressFormCache} remembers, for each device and operation (e.g. <code>setpoint</code>), which
+ * message variant (WHERE form) was accepted by the gateway, so that following commands are sent in that form first and
+ * do not cost a NACK and a retry each time. Learned forms of a device are saved as a thing property (see
+ * {@link #encode(String, String)}) and loaded back when the thing is initialized.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetAddressFormCache {
+
+    static final int UNKNOWN = -1;
+
+    // ownId -> (operation -> accepted variant index)
+    private final Map<String, Map<String, Integer>> forms = new ConcurrentHashMap<>();
+
+    // statistics
+    private final AtomicLong firstTry = new AtomicLong();
+    private final AtomicLong fallback = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Returns the index of the variant accepted for this device and operation, or {@link #UNKNOWN}
+     */
+    int get(String ownId, String operation) {
+        Map<String, Integer> deviceForms = forms.get(ownId);
+        if (deviceForms == null) {
+            return UNKNOWN;
+        }
+        Integer index = deviceForms.get(operation);
+        return index == null ? UNKNOWN : index;
+    }
+
+    /**
+     * Records the variant accepted by the gateway
+     *
+     * @param attempts number of frames sent before the variant was accepted
+     * @return true if the learned variant changed (and should be saved)
+     */
+    boolean learn(String ownId, String operation, int index, int attempts) {
+        (attempts > 1 ? fallback : firstTry).incrementAndGet();
+        Integer previous = forms.computeIfAbsent(ownId, k -> new ConcurrentHashMap<>()).put(operation, index);
+        return previous == null || previous != index;
+    }
+
+    /**
+     * Records that no variant was accepted by the gateway
+     */
+    void reject(String ownId, String operation) {
+        rejected.incrementAndGet();
+        Map<String, Integer> deviceForms = forms.get(ownId);
+        if (deviceForms != null) {
+            deviceForms.remove(operation);
+        }
+    }
+
+    /**
+     * Forget learned forms for a device (e.g. after its configuration changed)
+     */
+    void invalidate(String ownId) {
+        forms.remove(ownId);
+    }
+
+    /**
+     * Encodes learned forms of a device for its thing property: <code>WHERE:operation=index,...</code>. The device
+     * WHERE is stored too, so that forms learned for a different address are not loaded back.
+     *
+     * @return the property value, or null if nothing was learned
+     */
+    @Nullable
+    String encode(String ownId, String where) {
+        Map<String, Integer> deviceForms = forms.get(ownId);
+        if (deviceForms == null || deviceForms.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(where).append(':');
+        boolean first = true;
+        for (Map.Entry<String, Integer> e : new TreeMap<>(deviceForms).entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            sb.append(e.getKey()).append('=').append(e.getValue());
+            first = false;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Loads learned forms of a device from its thing property. Values learned for another WHERE, or not valid, are
+     * ignored.
+     *
+     * @return true if the property value was loaded
+     */
+    boolean load(String ownId, String where, @Nullable String encoded) {
+        invalidate(ownId);
+        if (encoded == null || !encoded.startsWith(where + ":")) {
+            return false;
+        }
+        Map<String, Integer> deviceForms = new ConcurrentHashMap<>();
+        for (String entry : encoded.substring(where.length() + 1).split(",")) {
+            int eq = entry.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            try {
+                deviceForms.put(entry.substring(0, eq), Integer.parseInt(entry.substring(eq + 1)));
+            } catch (NumberFormatException e) {
+                // ignore invalid entry
+            }
+        }
+        if (deviceForms.isEmpty()) {
+            return false;
+        }
+        forms.put(ownId, deviceForms);
+        return true;
+    }
+
+    /**
+     * Returns a human readable summary of cache statistics
+     */
+    String getStatistics() {
+        return String.format("devices=%d firstTry=%d fallback=%d rejected=%d", forms.size(), firstTry.get(),
+                fallback.get(), rejected.get());
+    }
+}
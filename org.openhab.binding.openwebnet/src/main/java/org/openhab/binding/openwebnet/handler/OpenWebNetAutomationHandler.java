@@ -15,10 +15,8 @@ package org.openhab.binding.openwebnet.handler;
 import static org.openhab.binding.openwebnet.OpenWebNetBindingConstants.*;
 
 import java.math.BigDecimal;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jdt.annotation.NonNull;
@@ -49,7 +47,6 @@ import org.slf4j.LoggerFactory;
 public class OpenWebNetAutomationHandler extends OpenWebNetThingHandler {
 
     private final Logger logger = LoggerFactory.getLogger(OpenWebNetAutomationHandler.class);
-    private static final SimpleDateFormat formatter = new SimpleDateFormat("ss.SSS");
 
     public final static Set<ThingTypeUID> SUPPORTED_THING_TYPES = OpenWebNetBindingConstants.AUTOMATION_SUPPORTED_THING_TYPES;
 
@@ -74,15 +71,21 @@ public class OpenWebNetAutomationHandler extends OpenWebNetThingHandler {
     public static final int POSITION_DOWN = 100;
     public static final int POSITION_UP = 0;
     public static final int POSITION_UNKNOWN = -1;
+    private static final String SNAPSHOT_POSITION = "position"; // positionEst in the bridge state snapshot
     public static final int SHUTTER_RUN_UNDEFINED = -1;
 
     private int shutterRun = SHUTTER_RUN_UNDEFINED;
+    private int shutterRunUp = SHUTTER_RUN_UNDEFINED; // if undefined, shutterRun is used for both directions
     private static final String AUTO_CALIBRATION = "AUTO";
+    // learned run times are saved to configuration at most once in this time
+    private static final long RUN_TIMES_SAVE_DELAY_MS = TimeUnit.MINUTES.toMillis(10);
+    private OpenWebNetTimerService.Timeout runTimesSave;
 
-    private long startedMovingAt = SHUTTER_RUN_UNDEFINED;
     private int internalState = STATE_UNKNOWN;
     private int positionEst = POSITION_UNKNOWN;
-    private ScheduledFuture<?> moveSchedule;
+    private volatile int positionLive = POSITION_UNKNOWN; // last interpolated position published while moving
+    // moving time, position estimation and STOP of percent moves
+    private OpenWebNetShutterPositionEngine positionEngine;
     private int positionRequested = POSITION_UNKNOWN;
     private int calibrating = CALIBRATION_INACTIVE;
     private static final int STEP_TIME_MIN = 50; // ms
@@ -163,8 +166,98 @@ public class OpenWebNetAutomationHandler extends OpenWebNetThingHandler {
                     "@text/offline.wrong-configuration");
             shutterRun = SHUTTER_RUN_UNDEFINED;
         }
+        Object shutterRunUpConfig = getConfig().get(CONFIG_PROPERTY_SHUTTER_RUN_UP);
+        if (shutterRunUpConfig != null) {
+            try {
+                shutterRunUp = Integer.parseInt(shutterRunUpConfig.toString());
+            } catch (NumberFormatException e) {
+                logger.warn("==OWN:AutomationHandler== Wrong configuration: {} must be an integer, ignoring it",
+                        CONFIG_PROPERTY_SHUTTER_RUN_UP);
+            }
+        }
+        positionEngine = new OpenWebNetShutterPositionEngine(bridgeHandler.getShutterMoves(),
+                () -> Automation.requestStop(deviceWhere, automationType));
+        setRunTimes();
+        updateProperty(PROPERTY_CALIBRATION_QUALITY, positionEngine.getCalibrationQuality());
         updateState(CHANNEL_SHUTTER, UnDefType.UNDEF);
         positionEst = POSITION_UNKNOWN;
+        restorePosition();
+    }
+
+    /**
+     * Set run times of the position engine from shutterRun (UP->DOWN) and shutterRunUp (DOWN->UP)
+     */
+    private void setRunTimes() {
+        positionEngine.setRunTimes(shutterRunUp >= 1000 ? shutterRunUp : shutterRun, shutterRun);
+    }
+
+    /**
+     * Update the run times estimate from a run that stopped without reversing direction, if it was a full run
+     *
+     * @param movedTime time (ms) the shutter moved in the current direction
+     */
+    private void learnRunTime(long movedTime) {
+        boolean down = internalState == STATE_MOVING_DOWN;
+        if (calibrating != CALIBRATION_INACTIVE || positionEst != (down ? POSITION_UP : POSITION_DOWN)) {
+            return;
+        }
+        if (positionEngine.learnFullRun(down, movedTime)) {
+            logger.debug("==OWN:AutomationHandler== # " + deviceWhere + " # full run {} in {}ms ===> {}",
+                    down ? "DOWN" : "UP", movedTime, positionEngine.getCalibrationQuality());
+            updateProperty(PROPERTY_CALIBRATION_QUALITY, positionEngine.getCalibrationQuality());
+            OpenWebNetTimerService.Timeout save = runTimesSave;
+            if (save == null || save.isDone()) {
+                runTimesSave = bridgeHandler.getTimers().schedule(this::saveRunTimes, RUN_TIMES_SAVE_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Save learned run times to configuration: shutterRun (UP->DOWN) and shutterRunUp (DOWN->UP)
+     */
+    private void saveRunTimes() {
+        int downRun = positionEngine.getDownRun();
+        int upRun = positionEngine.getUpRun();
+        if (downRun <= 0 || (downRun == shutterRun && upRun == shutterRunUp)) {
+            return;
+        }
+        shutterRun = downRun;
+        shutterRunUp = upRun;
+        Configuration configuration = editConfiguration();
+        configuration.put(CONFIG_PROPERTY_SHUTTER_RUN, Integer.toString(shutterRun));
+        configuration.put(CONFIG_PROPERTY_SHUTTER_RUN_UP, Integer.toString(shutterRunUp));
+        updateConfiguration(configuration);
+        logger.debug("==OWN:AutomationHandler== # " + deviceWhere
+                + " # configuration updated with learned run times: shutterRun={}ms shutterRunUp={}ms", shutterRun,
+                shutterRunUp);
+    }
+
+    /**
+     * Restore the estimated position saved in the bridge state snapshot, so that no full run is needed after a restart
+     */
+    private void restorePosition() {
+        String saved = bridgeHandler.getStateSnapshot().getValue(ownId, SNAPSHOT_POSITION);
+        if (saved == null || shutterRun <= 0) {
+            return;
+        }
+        try {
+            int pos = Integer.parseInt(saved);
+            if (pos >= POSITION_UP && pos <= POSITION_DOWN) {
+                positionEst = pos;
+                updateState(CHANNEL_SHUTTER, new PercentType(pos));
+                logger.debug("==OWN:AutomationHandler== # " + deviceWhere + " # positionEst={} restored", pos);
+            }
+        } catch (NumberFormatException e) {
+            // ignore invalid value
+        }
+    }
+
+    private void savePosition() {
+        if (positionEst == POSITION_UNKNOWN) {
+            bridgeHandler.getStateSnapshot().removeValue(ownId, SNAPSHOT_POSITION);
+        } else {
+            bridgeHandler.getStateSnapshot().putValue(ownId, SNAPSHOT_POSITION, Integer.toString(positionEst));
+        }
     }
 
     @Override
@@ -175,7 +268,7 @@ public class OpenWebNetAutomationHandler extends OpenWebNetThingHandler {
             updateStatus(ThingStatus.ONLINE);
             updateState(channel, UnDefType.UNDEF);
         } else {
-            bridgeHandler.gateway.send(Automation.requestStatus(deviceWhere, automationType));
+            bridgeHandler.requestStateAsync(Automation.requestStatus(deviceWhere, automationType));
         }
         // TODO request shutter position, if natively supported by device
     }
@@ -205,21 +298,24 @@ public class OpenWebNetAutomationHandler extends OpenWebNetThingHandler {
     private void handleShutterCommand(Command command) {
         calibrating = CALIBRATION_INACTIVE; // cancel calibration if we receive a command
         commandRequestedWhileMoving = null;
-        if (StopMoveType.STOP.equals(command)) { // STOP
-            bridgeHandler.gateway.send(Automation.requestStop(deviceWhere, automationType));
+        positionEngine.cancel();
+        if (StopMoveType.STOP.equals(command)) { // STOP: sent at once, not merged with other STOPs
+            positionEngine.stopSent();
+            bridgeHandler.sendHighPriorityAsync(Automation.requestStop(deviceWhere, automationType));
         } else if (command instanceof UpDownType || command instanceof PercentType) {
             if (internalState == STATE_MOVING_UP || internalState == STATE_MOVING_DOWN) { // already moving
                 logger.debug(
                         "==OWN:AutomationHandler==  # " + deviceWhere + " # already moving, STOP then defer command");
                 commandRequestedWhileMoving = command;
-                bridgeHandler.gateway.sendHighPriority(Automation.requestStop(deviceWhere, automationType));
+                positionEngine.stopSent();
+                bridgeHandler.sendHighPriorityAsync(Automation.requestStop(deviceWhere, automationType));
                 return;
             } else {
                 if (command instanceof UpDownType) {
                     if (UpDownType.UP.equals(command)) { // UP
-                        bridgeHandler.gateway.send(Automation.requestMoveUp(deviceWhere, automationType));
+                        sendMoveCommand(Automation.requestMoveUp(deviceWhere, automationType));
                     } else { // DOWN
-                        bridgeHandler.gateway.send(Automation.requestMoveDown(deviceWhere, automationType));
+                        sendMoveCommand(Automation.requestMoveDown(deviceWhere, automationType));
                     }
                 } else if (command instanceof PercentType) { // PERCENT
                     handlePercentCommand((PercentType) command);
@@ -231,6 +327,18 @@ public class OpenWebNetAutomationHandler extends OpenWebNetThingHandler {
         }
     }
 
+    /**
+     * Sends an UP/DOWN command: point-to-point commands for several shutters of the same area/group may be merged
+     * by the bridge into a single area/group command
+     */
+    private void sendMoveCommand(Automation msg) {
+        if (addrtype == PARAMETER_TYPE_POINT_TO_POINT) {
+            bridgeHandler.sendOptimized(this, msg);
+        } else {
+            bridgeHandler.sendAsync(msg);
+        }
+    }
+
     /**
      * Handles Automation Percent command
      *
@@ -244,49 +352,32 @@ public class OpenWebNetAutomationHandler extends OpenWebNetThingHandler {
             return;
         }
         if (percent == POSITION_DOWN) { // GO TO 100%
-            bridgeHandler.gateway.send(Automation.requestMoveDown(deviceWhere, automationType));
+            bridgeHandler.sendAsync(Automation.requestMoveDown(deviceWhere, automationType));
         } else if (percent == POSITION_UP) { // GO TO 0%
-            bridgeHandler.gateway.send(Automation.requestMoveUp(deviceWhere, automationType));
+            bridgeHandler.sendAsync(Automation.requestMoveUp(deviceWhere, automationType));
         } else { // GO TO XX%
             logger.debug("==OWN:AutomationHandler== # " + deviceWhere + " # {}% requested", percent);
             if (shutterRun == SHUTTER_RUN_UNDEFINED) {
                 logger.debug("==OWN:AutomationHandler== & " + deviceWhere
                         + " & shutterRun not configured, starting CALIBRATION...");
                 calibrating = CALIBRATION_ACTIVATED;
-                bridgeHandler.gateway.send(Automation.requestMoveUp(deviceWhere, automationType));
+                bridgeHandler.sendAsync(Automation.requestMoveUp(deviceWhere, automationType));
                 positionRequested = percent;
-            } else if (shutterRun > 0 && positionEst != POSITION_UNKNOWN) { // these two must be known to
-                                                                            // calculate
-                                                                            // moveTime
-                // calculate how much time we have to move and set a deadline to stop after that time
-                int moveTime = Math.round(((float) Math.abs(percent - positionEst) / POSITION_MAX_STEPS * shutterRun));
+            } else if (positionEngine.hasRunTimes() && positionEst != POSITION_UNKNOWN) { // these two must be
+                                                                                           // known to calculate
+                                                                                           // moveTime
+                // the STOP is scheduled by the position engine when the shutter is seen moving
+                long moveTime = positionEngine.moveTime(positionEst, percent);
                 logger.debug("==OWN:AutomationHandler== # " + deviceWhere + " # target moveTime={}", moveTime);
                 if (moveTime > STEP_TIME_MIN) { // FIXME calibrate this
-                    if (moveSchedule != null && !moveSchedule.isDone()) {
-                        // a moveSchedule was already scheduled and is not done... let's cancel the schedule
-                        moveSchedule.cancel(false);
-                        logger.warn( // should not get here....
-                                "==OWN:AutomationHandler== # " + deviceWhere
-                                        + " # new XX% requested, old moveSchedule cancelled");
-                    }
-                    // IMPORTANT IMPORTANT
-                    // start the schedule BEFORE sending the command, because the synch command waits for ACK
-                    // and can take some 300ms --- IS THIS STILL NEEDED ??
-                    logger.debug("==OWN:AutomationHandler== # " + deviceWhere + " # Starting schedule...");
-                    moveSchedule = scheduler.schedule(() -> {
-                        logger.debug("==OWN:AutomationHandler== # " + deviceWhere
-                                + " # moveSchedule expired, sending STOP...");
-                        bridgeHandler.gateway.sendHighPriority(Automation.requestStop(deviceWhere, automationType));
-                    }, moveTime, TimeUnit.MILLISECONDS);
-                    logger.debug("==OWN:AutomationHandler== # " + deviceWhere
-                            + " # ...schedule started, now sending highPriority command...");
+                    positionEngine.moveTo(positionEst, percent);
+                    // shutters moved together in the same direction are started with a single Area/Group frame
                     if (percent < positionEst) {
-                        bridgeHandler.gateway.sendHighPriority(Automation.requestMoveUp(deviceWhere, automationType));
+                        sendMoveCommand(Automation.requestMoveUp(deviceWhere, automationType));
                     } else {
-                        bridgeHandler.gateway.sendHighPriority(Automation.requestMoveDown(deviceWhere, automationType));
+                        sendMoveCommand(Automation.requestMoveDown(deviceWhere, automationType));
                     }
-                    logger.debug(
-                            "==OWN:AutomationHandler== # " + deviceWhere + " # ...gateway.sendHighPriority() returned");
+                    logger.debug("==OWN:AutomationHandler== # " + deviceWhere + " # ...move command queued");
                 } else {
                     logger.debug(
                             "==OWN:AutomationHandler== # " + deviceWhere + " # moveTime < STEP_TIME_MIN, do nothing");
@@ -335,9 +426,10 @@ public class OpenWebNetAutomationHandler extends OpenWebNetThingHandler {
                         "==OWN:AutomationHandler== & " + deviceWhere + " & ...CALIBRATING: started going ALL DOWN...");
             }
         } else if (msg.isStop()) {
-            long stoppedAt = System.currentTimeMillis();
-            if (calibrating == CALIBRATION_GOING_DOWN && shutterRun == SHUTTER_RUN_UNDEFINED) {
-                shutterRun = (int) (stoppedAt - startedMovingAt);
+            long movedTime = positionEngine.elapsedMs();
+            if (calibrating == CALIBRATION_GOING_DOWN && shutterRun == SHUTTER_RUN_UNDEFINED && movedTime > 0) {
+                shutterRun = (int) movedTime;
+                setRunTimes();
                 logger.debug("==OWN:AutomationHandler== & " + deviceWhere
                         + " & ...CALIBRATING: reached DOWN ===> shutterRun={}", shutterRun);
                 updateStateInt(STATE_STOPPED);
@@ -356,7 +448,7 @@ public class OpenWebNetAutomationHandler extends OpenWebNetThingHandler {
                 logger.debug("==OWN:AutomationHandler==  & " + deviceWhere
                         + " & ..CALIBRATING: reached UP, now sending DOWN command...", shutterRun);
                 calibrating = CALIBRATION_ACTIVATED;
-                bridgeHandler.gateway.send(Automation.requestMoveDown(deviceWhere, automationType));
+                bridgeHandler.sendAsync(Automation.requestMoveDown(deviceWhere, automationType));
             } else {
                 updateStateInt(STATE_STOPPED);
                 // do deferred command, if present
@@ -371,24 +463,37 @@ public class OpenWebNetAutomationHandler extends OpenWebNetThingHandler {
         }
     }
 
-    /** Updates internal state: state and positionEst */
-    private void updateStateInt(int newState) {
+    /**
+     * Updates internal state: state and positionEst. Synchronized with {@link #publishInterpolatedPosition()}, so that
+     * an interpolated position is never published after the final position of a move.
+     */
+    private synchronized void updateStateInt(int newState) {
+        if (newState == internalState && newState != STATE_STOPPED) {
+            // same movement notified again (e.g. Area/Group frame and then the device own frame): keep timing
+            return;
+        }
         if (internalState == STATE_STOPPED) {
             if (newState != STATE_STOPPED) { // moving after stop
-                startedMovingAt = System.currentTimeMillis();
-                logger.debug("==OWN:AutomationHandler== # " + deviceWhere + " # MOVING {} - startedMovingAt={} - {}",
-                        newState, startedMovingAt, formatter.format(new Date(startedMovingAt)));
+                positionEngine.started(newState == STATE_MOVING_DOWN);
+                positionLive = positionEst;
+                bridgeHandler.getShutterTicker().moving(this);
+                logger.debug("==OWN:AutomationHandler== # " + deviceWhere + " # MOVING {}", newState);
             }
         } else { // we were moving
-            updatePosition();
-            if (newState != STATE_STOPPED) { // moving after moving, take new timestamp
-                startedMovingAt = System.currentTimeMillis();
-                logger.debug("==OWN:AutomationHandler== # " + deviceWhere + " # MOVING {} - startedMovingAt={} - {}",
-                        newState, startedMovingAt, formatter.format(new Date(startedMovingAt)));
+            long movedTime = positionEngine.stopped();
+            if (movedTime >= 0) {
+                if (newState == STATE_STOPPED) {
+                    learnRunTime(movedTime);
+                }
+                updatePosition(movedTime);
             }
-            // cancel the schedule
-            if (moveSchedule != null && !moveSchedule.isDone()) {
-                moveSchedule.cancel(false);
+            if (newState != STATE_STOPPED) { // moving after moving (or after unknown state), take new timestamp
+                positionEngine.started(newState == STATE_MOVING_DOWN);
+                positionLive = positionEst;
+                bridgeHandler.getShutterTicker().moving(this);
+                logger.debug("==OWN:AutomationHandler== # " + deviceWhere + " # MOVING {}", newState);
+            } else {
+                bridgeHandler.getShutterTicker().stopped(this);
             }
         }
         internalState = newState;
@@ -401,14 +506,14 @@ public class OpenWebNetAutomationHandler extends OpenWebNetThingHandler {
     /**
      * update positionEst based on movement time and current internalState
      *
+     * @param movedTime time (ms) the shutter moved in the current direction
      */
-    private void updatePosition() {
+    private void updatePosition(long movedTime) {
         int newPos = POSITION_UNKNOWN;
-        if (shutterRun > 0) {// we have shutterRun defined, let's calculate new positionEst
-            long movedTime = System.currentTimeMillis() - startedMovingAt;
+        if (positionEngine.hasRunTimes()) {// we have run times defined, let's calculate new positionEst
             logger.debug("==OWN:AutomationHandler== # " + deviceWhere + " # current positionEst={}", positionEst);
             logger.debug("==OWN:AutomationHandler== # " + deviceWhere + " # movedTime={}", movedTime);
-            int movedSteps = Math.round((float) movedTime / shutterRun * POSITION_MAX_STEPS);
+            int movedSteps = positionEngine.steps(internalState == STATE_MOVING_DOWN, movedTime);
             logger.debug("==OWN:AutomationHandler== # " + deviceWhere + " # movedSteps: {} {}", movedSteps,
                     (internalState == STATE_MOVING_DOWN) ? "DOWN(+)" : "UP(-)");
             if (positionEst == POSITION_UNKNOWN && movedSteps >= POSITION_MAX_STEPS) { // we did a full run
@@ -426,13 +531,59 @@ public class OpenWebNetAutomationHandler extends OpenWebNetThingHandler {
             }
         }
         if (newPos != POSITION_UNKNOWN) {
-            if (newPos != positionEst) {
-                updateState(CHANNEL_SHUTTER, new PercentType(newPos));
-            }
+            // also if not changed: the interpolated position published while moving is corrected
+            updateState(CHANNEL_SHUTTER, new PercentType(newPos));
         } else {
             updateState(CHANNEL_SHUTTER, UnDefType.UNDEF);
         }
         positionEst = newPos;
+        positionLive = newPos;
+        savePosition();
+        if (newPos != POSITION_UNKNOWN && positionEngine.reached(newPos)) {
+            Map<String, String> properties = editProperties();
+            properties.put(PROPERTY_POSITION_ACCURACY, positionEngine.getAccuracy());
+            updateProperties(properties);
+        }
+    }
+
+    /**
+     * Publish the position interpolated from the time the shutter is moving, called periodically by the bridge
+     * {@link OpenWebNetShutterTicker} while the shutter moves
+     */
+    synchronized void publishInterpolatedPosition() {
+        int state = internalState;
+        int from = positionEst;
+        if (from == POSITION_UNKNOWN || (state != STATE_MOVING_UP && state != STATE_MOVING_DOWN)
+                || !positionEngine.hasRunTimes()) {
+            return;
+        }
+        long elapsed = positionEngine.elapsedMs();
+        if (elapsed < 0) {
+            return;
+        }
+        boolean down = state == STATE_MOVING_DOWN;
+        int steps = positionEngine.steps(down, elapsed);
+        int pos = Math.max(POSITION_UP, Math.min(POSITION_DOWN, down ? from + steps : from - steps));
+        if (pos != positionLive) {
+            positionLive = pos;
+            updateState(CHANNEL_SHUTTER, new PercentType(pos));
+        }
+    }
+
+    @Override
+    public void dispose() {
+        if (positionEngine != null) {
+            positionEngine.cancel();
+        }
+        if (bridgeHandler != null) {
+            bridgeHandler.getShutterTicker().stopped(this);
+        }
+        OpenWebNetTimerService.Timeout save = runTimesSave;
+        if (save != null && !save.isDone()) { // save now learned run times not saved yet
+            save.cancel();
+            saveRunTimes();
+        }
+        super.dispose();
     }
 
     @Override
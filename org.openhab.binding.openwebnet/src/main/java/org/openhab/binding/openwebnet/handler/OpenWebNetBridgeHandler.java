@@ -14,26 +14,38 @@ package org.openhab.binding.openwebnet.handler;
 
 import static org.openhab.binding.openwebnet.OpenWebNetBindingConstants.*;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.smarthome.config.core.ConfigConstants;
 import org.eclipse.smarthome.config.core.status.ConfigStatusMessage;
 import org.eclipse.smarthome.core.thing.Bridge;
+import org.eclipse.smarthome.core.thing.Channel;
 import org.eclipse.smarthome.core.thing.ChannelUID;
 import org.eclipse.smarthome.core.thing.Thing;
 import org.eclipse.smarthome.core.thing.ThingStatus;
 import org.eclipse.smarthome.core.thing.ThingStatusDetail;
 import org.eclipse.smarthome.core.thing.ThingTypeUID;
 import org.eclipse.smarthome.core.thing.binding.ConfigStatusBridgeHandler;
+import org.eclipse.smarthome.core.library.types.StringType;
 import org.eclipse.smarthome.core.types.Command;
 import org.openhab.binding.openwebnet.OpenWebNetBindingConstants;
+import org.openhab.binding.openwebnet.handler.OpenWebNetCommandSender.Qos;
 import org.openhab.binding.openwebnet.internal.discovery.OpenWebNetDeviceDiscoveryService;
 import org.openwebnet.OpenDeviceType;
 import org.openwebnet.OpenError;
@@ -70,12 +82,68 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
     private static final int GATEWAY_ONLINE_TIMEOUT = 20; // (sec) Time to wait for the gateway to become connected
     private static final int CONFIG_GATEWAY_DEFAULT_PORT = 20000;
     private static final String CONFIG_GATEWAY_DEFAULT_PASSWD = "12345";
+    private static final int DEFAULT_COALESCING_WINDOW = 200; // (ms)
+    private static final int DEFAULT_GROUP_COMMAND_WINDOW = 0; // (ms) disabled, see OpenWebNetCommandOptimizer
+    private static final int DEFAULT_REFRESH_WINDOW = 100; // (ms)
+    private static final int DEFAULT_STARTUP_RATE = 10; // (devices/sec)
+    private static final int DEFAULT_SHUTTER_POSITION_RATE = 2; // (updates/sec)
+    private static final int DEFAULT_RAMP_FRAME_RATE = 10; // (frames/sec)
+    private static final int STATISTICS_PUBLISH_INTERVAL = 60; // (sec) interval to publish statistics as properties
 
     public final static Set<ThingTypeUID> SUPPORTED_THING_TYPES = OpenWebNetBindingConstants.BRIDGE_SUPPORTED_THING_TYPES;
 
     // ConcurrentHashMap of devices registered to this BridgeHandler
     // Association is: String ownId -> OpenWebNetThingHandler, with ownId = WHO.WHERE
     private Map<String, OpenWebNetThingHandler> registeredDevices = new ConcurrentHashMap<>();
+    // Same association, indexed by numeric WHO and WHERE to route received BUS frames without building ownId strings
+    private final OpenWebNetRoutingIndex routingIndex = new OpenWebNetRoutingIndex();
+    // Area/group/general -> member point-to-point devices, to update all members from a single received frame
+    private final OpenWebNetTopology topology = new OpenWebNetTopology();
+    // drops irrelevant frames based on the raw frame, before any further processing
+    private final OpenWebNetFrameFilter frameFilter = new OpenWebNetFrameFilter(routingIndex, topology);
+
+    // received frames are handled by device handlers outside the gateway reader thread, ordered per device
+    private final OpenWebNetMessageDispatcher dispatcher;
+    // commands are sent to the gateway by a dedicated thread, handlers get a CompletableFuture for the ACK/NACK.
+    // Created by initialize() and stopped by dispose()
+    private volatile @Nullable OpenWebNetCommandSender commandSender;
+    // short, frequent timers of the bridge and its devices
+    private final OpenWebNetTimerService timers;
+    // value commands coalescing: window (ms) and counters (executed / collapsed commands)
+    private volatile int coalescingWindow = DEFAULT_COALESCING_WINDOW;
+    private final AtomicLong coalescerExecuted = new AtomicLong();
+    private final AtomicLong coalescerCollapsed = new AtomicLong();
+    // merges same commands for all members of a complete group into a single GROUP frame
+    private final OpenWebNetCommandOptimizer commandOptimizer;
+    // address form (e.g. WHERE=N or WHERE=#N) accepted by each device, per operation
+    private final OpenWebNetAddressFormCache addressFormCache = new OpenWebNetAddressFormCache();
+    // merges status requests for devices of the same area/group into a single AREA/GROUP/GENERAL status request
+    private final OpenWebNetRefreshCoalescer refreshCoalescer;
+    // last published state of devices channels, to publish only changes
+    private final OpenWebNetShadowState shadowState = new OpenWebNetShadowState();
+    // last known state of devices, restored at startup
+    private final OpenWebNetStateSnapshot stateSnapshot = new OpenWebNetStateSnapshot();
+    // entries of devices not registered are removed from the state snapshot this time after startup
+    private static final long SNAPSHOT_COMPACT_DELAY_MS = TimeUnit.MINUTES.toMillis(5);
+    private OpenWebNetTimerService.@Nullable Timeout snapshotCompaction;
+    // refreshes all devices states after connection/re-connection
+    private final OpenWebNetStateResync stateResync;
+    // times the STOPs of shutters percent moves
+    private final OpenWebNetShutterMoveOrchestrator shutterMoves;
+    // publishes the position of moving shutters
+    private final OpenWebNetShutterTicker shutterTicker;
+    // dimmers fades
+    private final OpenWebNetDimmerRamps dimmerRamps;
+    // lighting scenes snapshots
+    private final OpenWebNetLightingScenes lightingScenes;
+    // deadlines of CEN/CEN+ buttons pressures
+    private final OpenWebNetCENPressTimer cenPressTimer;
+    // active power notifications subscriptions of energy central units
+    private final OpenWebNetEnergySubscriptions energySubscriptions;
+    // paces devices refreshes at startup and after a resync
+    private final OpenWebNetStartupSequencer startupSequencer;
+    @Nullable
+    private ScheduledFuture<?> statisticsSchedule;
 
     @Nullable
     protected OpenGateway gateway;
@@ -94,6 +162,24 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
 
     public OpenWebNetBridgeHandler(Bridge bridge) {
         super(bridge);
+        dispatcher = new OpenWebNetMessageDispatcher("binding-openwebnet-" + bridge.getUID().getId() + "-dispatcher",
+                Runtime.getRuntime().availableProcessors());
+        timers = new OpenWebNetTimerService("OH-binding-openwebnet-" + bridge.getUID().getId() + "-timer");
+        commandOptimizer = new OpenWebNetCommandOptimizer(timers, topology, this::sendAsync);
+        refreshCoalescer = new OpenWebNetRefreshCoalescer(timers, routingIndex, topology,
+                msg -> submit(msg, Qos.STATE_REFRESH));
+        shutterMoves = new OpenWebNetShutterMoveOrchestrator(timers,
+                msgs -> submitBatch(msgs, Qos.REALTIME_STOP));
+        shutterTicker = new OpenWebNetShutterTicker(timers);
+        dimmerRamps = new OpenWebNetDimmerRamps(timers, this::sendBatch);
+        lightingScenes = new OpenWebNetLightingScenes(topology, registeredDevices::values, this::sendBatch);
+        cenPressTimer = new OpenWebNetCENPressTimer(timers);
+        energySubscriptions = new OpenWebNetEnergySubscriptions(timers,
+                msgs -> submitBatch(msgs, Qos.BACKGROUND), this::sendBackgroundAsync);
+        startupSequencer = new OpenWebNetStartupSequencer(timers,
+                progress -> updateProperty(PROPERTY_STARTUP_PROGRESS, progress), this::scheduleSnapshotCompaction);
+        stateResync = new OpenWebNetStateResync(timers, registeredDevices::values, this::requestStateAsync,
+                this::refreshDevicePaced, startupSequencer::resyncCompleted);
     }
 
     @Nullable
@@ -105,12 +191,243 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
         return isBusGateway;
     }
 
+    /**
+     * Send a command to the gateway without waiting for the gateway response
+     *
+     * @param msg the command to send
+     * @return a future completed with the gateway response (ACK/NACK), or exceptionally on timeout/connection error
+     */
+    public CompletableFuture<OpenMessage> sendAsync(OpenMessage msg) {
+        return submit(msg, Qos.USER_COMMAND);
+    }
+
+    /**
+     * Same as {@link #sendAsync(OpenMessage)}, but for time-critical commands (e.g. shutter STOP): the command is sent
+     * before all other queued commands
+     *
+     * @param msg the command to send
+     * @return a future completed with the gateway response (ACK/NACK), or exceptionally on timeout/connection error
+     */
+    public CompletableFuture<OpenMessage> sendHighPriorityAsync(OpenMessage msg) {
+        return submit(msg, Qos.REALTIME_STOP);
+    }
+
+    /**
+     * Same as {@link #sendAsync(OpenMessage)}, for device state requests: sent after queued user commands. On BUS
+     * gateways, requests received within a short window are merged (see {@link OpenWebNetRefreshCoalescer}).
+     *
+     * @param msg the state request to send
+     * @return a future completed with the gateway response (ACK/NACK), or exceptionally on timeout/connection error
+     */
+    public CompletableFuture<OpenMessage> requestStateAsync(OpenMessage msg) {
+        if (isBusGateway) {
+            return refreshCoalescer.submit(msg);
+        } else {
+            return submit(msg, Qos.STATE_REFRESH);
+        }
+    }
+
+    /**
+     * Same as {@link #sendAsync(OpenMessage)}, for background commands (e.g. subscriptions renewal): sent only when no
+     * other command is queued
+     *
+     * @param msg the command to send
+     * @return a future completed with the gateway response (ACK/NACK), or exceptionally on timeout/connection error
+     */
+    public CompletableFuture<OpenMessage> sendBackgroundAsync(OpenMessage msg) {
+        return submit(msg, Qos.BACKGROUND);
+    }
+
+    /**
+     * Send a point-to-point Lighting ON/OFF or Automation UP/DOWN/STOP command for a device. On BUS gateways, if
+     * enabled and all the members of a group declared complete get the same command within a short window, a single
+     * GROUP frame is sent for all of them.
+     *
+     * @param handler the device handler
+     * @param msg     the point-to-point command
+     * @return a future completed with the gateway response (ACK/NACK) to the frame sent for this command
+     */
+    public CompletableFuture<OpenMessage> sendOptimized(OpenWebNetThingHandler handler, BaseOpenMessage msg) {
+        if (isBusGateway) {
+            return commandOptimizer.submit(handler, msg);
+        } else {
+            return sendAsync(msg);
+        }
+    }
+
+    /**
+     * Send a batch of commands to the gateway, back-to-back and in order, without waiting for the gateway responses
+     *
+     * @param msgs the commands to send
+     * @return a future completed with the gateway responses (ACK/NACK) in the same order of the commands, or
+     *         exceptionally if one of the commands failed
+     */
+    public CompletableFuture<List<OpenMessage>> sendBatch(List<OpenMessage> msgs) {
+        return submitBatch(msgs, Qos.USER_COMMAND);
+    }
+
+    private CompletableFuture<OpenMessage> submit(OpenMessage msg, Qos qos) {
+        OpenWebNetCommandSender sender = commandSender;
+        if (sender == null) {
+            CompletableFuture<OpenMessage> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("bridge not initialized"));
+            return failed;
+        }
+        return sender.submit(msg, qos);
+    }
+
+    private CompletableFuture<List<OpenMessage>> submitBatch(List<OpenMessage> msgs, Qos qos) {
+        OpenWebNetCommandSender sender = commandSender;
+        if (sender == null) {
+            CompletableFuture<List<OpenMessage>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("bridge not initialized"));
+            return failed;
+        }
+        return sender.submitBatch(msgs, qos);
+    }
+
+    /**
+     * Returns the window (ms) after a value command has been answered by the gateway, during which newer commands for
+     * the same channel are coalesced
+     */
+    int getCoalescingWindow() {
+        return coalescingWindow;
+    }
+
+    /**
+     * Returns true while a state resync of all devices is in progress: devices are refreshed by it
+     */
+    boolean isStateResyncActive() {
+        return stateResync.isActive();
+    }
+
+    /**
+     * Returns true while things are being started: device refreshes should be requested with
+     * {@link #refreshDevicePaced(OpenWebNetThingHandler)}
+     */
+    boolean isStartupInProgress() {
+        return startupSequencer.isInProgress();
+    }
+
+    /**
+     * Refresh a device through the startup sequencer, at a rate the gateway can sustain. Things with linked items go
+     * first, then devices that were recently active (with a state in the state snapshot).
+     */
+    void refreshDevicePaced(OpenWebNetThingHandler handler) {
+        int priority;
+        if (handler.hasLinkedChannels()) {
+            priority = OpenWebNetStartupSequencer.PRIORITY_LINKED;
+        } else if (handler.ownId != null && stateSnapshot.contains(handler.ownId)) {
+            priority = OpenWebNetStartupSequencer.PRIORITY_ACTIVE;
+        } else {
+            priority = OpenWebNetStartupSequencer.PRIORITY_OTHER;
+        }
+        startupSequencer.admit(handler, priority);
+    }
+
+    /**
+     * Returns the timer service to be used by devices for short, frequent timers
+     */
+    OpenWebNetTimerService getTimers() {
+        return timers;
+    }
+
+    OpenWebNetShadowState getShadowState() {
+        return shadowState;
+    }
+
+    /**
+     * Returns the last published states of all registered devices, for diagnostics
+     *
+     * @return ownId -> (channel id -> state), with an <code>online</code> entry for each device
+     */
+    public Map<String, Map<String, String>> getDeviceStates() {
+        return shadowState.getStates();
+    }
+
+    OpenWebNetShutterMoveOrchestrator getShutterMoves() {
+        return shutterMoves;
+    }
+
+    OpenWebNetShutterTicker getShutterTicker() {
+        return shutterTicker;
+    }
+
+    OpenWebNetDimmerRamps getDimmerRamps() {
+        return dimmerRamps;
+    }
+
+    OpenWebNetCENPressTimer getCENPressTimer() {
+        return cenPressTimer;
+    }
+
+    OpenWebNetEnergySubscriptions getEnergySubscriptions() {
+        return energySubscriptions;
+    }
+
+    OpenWebNetStateSnapshot getStateSnapshot() {
+        return stateSnapshot;
+    }
+
+    /**
+     * Startup is completed: things still not registered some time later are deleted or re-addressed, remove their
+     * entries from the state snapshot
+     */
+    private void scheduleSnapshotCompaction() {
+        OpenWebNetTimerService.Timeout compaction = snapshotCompaction;
+        if (compaction != null) {
+            compaction.cancel();
+        }
+        snapshotCompaction = timers.schedule(() -> stateSnapshot.retain(registeredDevices.keySet()),
+                SNAPSHOT_COMPACT_DELAY_MS);
+    }
+
+    /**
+     * A thing of this bridge has been removed: forget its last known state
+     *
+     * @param ownId device OpenWebNet id
+     */
+    void forgetDevice(String ownId) {
+        stateSnapshot.remove(ownId);
+    }
+
+    OpenWebNetAddressFormCache getAddressFormCache() {
+        return addressFormCache;
+    }
+
+    void countCoalescedCommand(boolean collapsed) {
+        (collapsed ? coalescerCollapsed : coalescerExecuted).incrementAndGet();
+    }
+
+    /**
+     * Returns true if the gateway response is an ACK
+     */
+    public static boolean isAck(@Nullable OpenMessage response) {
+        return response != null && OpenMessage.ACK.equals(response.getValue());
+    }
+
     @Override
     public void initialize() {
         logger.debug("==OWN== BridgeHandler.initialize() ");
 
         ThingTypeUID thingType = getThing().getThingTypeUID();
         logger.debug("==OWN== Bridge type: {}", thingType);
+        // stopped by dispose(): the handler is initialized again on configuration changes
+        timers.start();
+        dispatcher.start();
+        OpenWebNetCommandSender sender = new OpenWebNetCommandSender(
+                "OH-binding-openwebnet-" + getThing().getUID().getId() + "-sender");
+        commandSender = sender;
+        Path snapshotFile = Paths.get(ConfigConstants.getUserDataFolder(), BINDING_ID,
+                getThing().getUID().getId() + ".snapshot");
+        try {
+            stateSnapshot.open(snapshotFile);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("==OWN== cannot open state snapshot file {}, devices state will not be restored at startup: {}",
+                    snapshotFile, e.getMessage());
+        }
+        startupSequencer.start();
+        updateProperty(PROPERTY_STARTUP_PROGRESS, startupSequencer.getProgress());
 
         if (thingType.equals(THING_TYPE_DONGLE)) {
             initZigBeeGateway();
@@ -126,11 +443,22 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
         }
         // FIXME end-debug
 
+        statisticsSchedule = scheduler.scheduleWithFixedDelay(this::publishStatistics, STATISTICS_PUBLISH_INTERVAL,
+                STATISTICS_PUBLISH_INTERVAL, TimeUnit.SECONDS);
+
+        sender.setGateway(gateway);
+        // things registered before a re-initialization of the bridge are not initialized again
+        for (OpenWebNetThingHandler device : registeredDevices.values()) {
+            if (device instanceof OpenWebNetEnergyHandler) {
+                ((OpenWebNetEnergyHandler) device).subscribeIfLinked();
+            }
+        }
         gateway.subscribe(this);
         if (gateway.isConnected()) { // gateway is already connected, device can go ONLINE
             isGatewayConnected = true;
             logger.info("==OWN== ------------------- ALREADY CONNECTED -> setting status to ONLINE");
             updateStatus(ThingStatus.ONLINE);
+            stateResync.start(isBusGateway);
         } else {
             updateStatus(ThingStatus.UNKNOWN);
             logger.debug("==OWN== Trying to connect gateway...");
@@ -195,6 +523,27 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
             if (discoveryConfig != null && discoveryConfig.equalsIgnoreCase("true")) {
                 discoveryByActivation = true;
             }
+            frameFilter.setAllowlist((String) getConfig().get(CONFIG_PROPERTY_FRAME_FILTER));
+            Object windowConfig = getConfig().get(CONFIG_PROPERTY_COALESCING_WINDOW);
+            if (windowConfig != null) {
+                coalescingWindow = Math.max(0, ((BigDecimal) windowConfig).intValue());
+            }
+            topology.setCompleteGroups((String) getConfig().get(CONFIG_PROPERTY_COMPLETE_GROUPS));
+            Object groupWindowConfig = getConfig().get(CONFIG_PROPERTY_GROUP_COMMAND_WINDOW);
+            commandOptimizer.setWindow(groupWindowConfig == null ? DEFAULT_GROUP_COMMAND_WINDOW
+                    : Math.max(0, ((BigDecimal) groupWindowConfig).intValue()));
+            Object refreshWindowConfig = getConfig().get(CONFIG_PROPERTY_REFRESH_WINDOW);
+            refreshCoalescer.setWindow(refreshWindowConfig == null ? DEFAULT_REFRESH_WINDOW
+                    : Math.max(0, ((BigDecimal) refreshWindowConfig).intValue()));
+            Object startupRateConfig = getConfig().get(CONFIG_PROPERTY_STARTUP_RATE);
+            startupSequencer.setRate(startupRateConfig == null ? DEFAULT_STARTUP_RATE
+                    : ((BigDecimal) startupRateConfig).intValue());
+            Object positionRateConfig = getConfig().get(CONFIG_PROPERTY_SHUTTER_POSITION_RATE);
+            shutterTicker.setRate(positionRateConfig == null ? DEFAULT_SHUTTER_POSITION_RATE
+                    : ((BigDecimal) positionRateConfig).intValue());
+            Object rampRateConfig = getConfig().get(CONFIG_PROPERTY_RAMP_FRAME_RATE);
+            dimmerRamps.setFrameRate(rampRateConfig == null ? DEFAULT_RAMP_FRAME_RATE
+                    : ((BigDecimal) rampRateConfig).intValue());
             logger.debug("==OWN== Creating new BUS gateway with config properties: {}:{}, pwd={}", host, port,
                     passwdMasked);
             gateway = OpenWebNet.gatewayBus(host, port, passwd);
@@ -212,6 +561,18 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
         if (!gateway.isConnected()) {
             logger.warn("==OWN== BridgeHandler gateway is NOT connected, skipping command");
             return;
+        } else if (CHANNEL_SEND_FRAMES.equals(channelUID.getId()) && command instanceof StringType) {
+            sendFrames(command.toString());
+        } else if (CHANNEL_SCENE_SNAPSHOT.equals(channelUID.getId()) && command instanceof StringType) {
+            lightingScenes.snapshot(command.toString().trim());
+            updateProperty(PROPERTY_STATS_SCENES, lightingScenes.getStatistics());
+        } else if (CHANNEL_SCENE_RESTORE.equals(channelUID.getId()) && command instanceof StringType) {
+            lightingScenes.restore(command.toString().trim()).whenComplete((responses, e) -> {
+                if (e != null) {
+                    logger.warn("==OWN== BridgeHandler cannot restore scene '{}': {}", command, e.getMessage());
+                }
+                updateProperty(PROPERTY_STATS_SCENES, lightingScenes.getStatistics());
+            });
         } else {
             logger.warn("==OWN== BridgeHandler Channel not supported: channel={}", channelUID);
         }
@@ -260,6 +621,30 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
             gateway.unsubscribe(this);
             logger.debug("==OWN== Connection closed and unsubscribed.");
         }
+        ScheduledFuture<?> sch = statisticsSchedule;
+        if (sch != null) {
+            sch.cancel(false);
+        }
+        stateResync.cancel();
+        startupSequencer.cancel();
+        OpenWebNetTimerService.Timeout compaction = snapshotCompaction;
+        if (compaction != null) {
+            compaction.cancel();
+            snapshotCompaction = null;
+        }
+        energySubscriptions.shutdown();
+        shutterMoves.shutdown();
+        shutterTicker.shutdown();
+        dimmerRamps.shutdown();
+        cenPressTimer.shutdown();
+        stateSnapshot.close();
+        dispatcher.shutdown();
+        OpenWebNetCommandSender sender = commandSender;
+        if (sender != null) {
+            sender.shutdown();
+            commandSender = null;
+        }
+        timers.shutdown();
         logger.debug("==OWN== now calling super.dispose()");
         super.dispose();
     }
@@ -324,6 +709,72 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
         }
     }
 
+    /**
+     * Send a list of frames (for example <code>*1*1*11##*1*1*12##</code>, optionally separated by spaces or commas)
+     * as a batch
+     */
+    private void sendFrames(String frames) {
+        List<OpenMessage> msgs = new ArrayList<>();
+        for (String frame : frames.replaceAll("[\\s,]", "").split("(?<=##)")) {
+            if (frame.isEmpty()) {
+                continue;
+            }
+            OpenMessage msg = OpenMessageFactory.parse(frame);
+            if (msg == null) {
+                logger.warn("==OWN== BridgeHandler invalid frame '{}' in {}, skipping batch", frame,
+                        CHANNEL_SEND_FRAMES);
+                return;
+            }
+            msgs.add(msg);
+        }
+        if (msgs.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        sendBatch(msgs).whenComplete((responses, e) -> {
+            if (e != null) {
+                logger.warn("==OWN== BridgeHandler batch of {} frames failed: {}", msgs.size(), e.getMessage());
+            } else {
+                logger.debug("==OWN== BridgeHandler batch of {} frames completed in {}ms", msgs.size(),
+                        System.currentTimeMillis() - start);
+            }
+        });
+    }
+
+    /**
+     * Publish runtime statistics as bridge properties
+     */
+    private void publishStatistics() {
+        try {
+            updateProperty(PROPERTY_STATS_DISPATCH, dispatcher.getStatistics());
+            OpenWebNetCommandSender sender = commandSender;
+            if (sender != null) {
+                updateProperty(PROPERTY_STATS_COMMANDS, sender.getStatistics());
+                updateProperty(PROPERTY_STATS_QUEUE_DELAY, sender.getQueueDelayStatistics());
+            }
+            updateProperty(PROPERTY_STATS_ADDRESS_FORMS, addressFormCache.getStatistics());
+            updateProperty(PROPERTY_STATS_RESYNC, stateResync.getStatistics());
+            updateProperty(PROPERTY_STATS_TIMERS, timers.getStatistics());
+            updateProperty(PROPERTY_STATS_SNAPSHOT, stateSnapshot.getStatistics());
+            updateProperty(PROPERTY_STATS_SHADOW, shadowState.getStatistics());
+            updateProperty(PROPERTY_STATS_ENERGY, energySubscriptions.getStatistics());
+            updateProperty(PROPERTY_STATS_SHUTTERS,
+                    shutterMoves.getStatistics() + " " + shutterTicker.getStatistics());
+            updateProperty(PROPERTY_STATS_RAMPS, dimmerRamps.getStatistics());
+            updateProperty(PROPERTY_STATS_SCENES, lightingScenes.getStatistics());
+            updateProperty(PROPERTY_STATS_BUTTONS, cenPressTimer.getStatistics());
+            updateProperty(PROPERTY_STATS_COALESCING, String.format("executed=%d collapsed=%d window=%dms",
+                    coalescerExecuted.get(), coalescerCollapsed.get(), coalescingWindow));
+            if (isBusGateway) {
+                updateProperty(PROPERTY_STATS_FRAME_FILTER, frameFilter.getStatistics());
+                updateProperty(PROPERTY_STATS_GROUP_COMMANDS, commandOptimizer.getStatistics());
+                updateProperty(PROPERTY_STATS_REFRESH, refreshCoalescer.getStatistics());
+            }
+        } catch (RuntimeException e) {
+            logger.debug("==OWN== could not publish statistics: {}", e.getMessage());
+        }
+    }
+
     /**
      * Register a device ThingHandler to this BridgHandler
      *
@@ -334,7 +785,26 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
         if (registeredDevices.containsKey(ownId)) {
             logger.warn("==OWN:BridgeHandler== registering device with an existing ownId={}", ownId);
         }
+        List<Channel> channels = thingHandler.getThing().getChannels();
+        String[] channelIds = new String[channels.size()];
+        for (int i = 0; i < channelIds.length; i++) {
+            channelIds[i] = channels.get(i).getUID().getId();
+        }
+        thingHandler.shadowSlot = shadowState.allocate(ownId, channelIds);
+        // restore last known state before frames from the BUS are routed to the device
+        for (String frame : stateSnapshot.frames(ownId)) {
+            try {
+                thingHandler.restoreState((BaseOpenMessage) OpenMessageFactory.parse(frame));
+            } catch (RuntimeException e) {
+                logger.debug("==OWN:BridgeHandler== cannot restore state frame {} for ownId={}: {}", frame, ownId,
+                        e.getMessage());
+            }
+        }
         registeredDevices.put(ownId, thingHandler);
+        routingIndex.put(ownId, thingHandler);
+        if (isBusGateway && thingHandler.deviceWhere != null) {
+            addToTopology(ownId, thingHandler);
+        }
         logger.info("==OWN:BridgeHandler== registered device ownId={}, thing={}", ownId,
                 thingHandler.getThing().getUID());
     }
@@ -345,13 +815,41 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
      * @param ownId device OpenWebNet id
      */
     protected void unregisterDevice(String ownId) {
-        if (registeredDevices.remove(ownId) != null) {
+        routingIndex.remove(ownId);
+        OpenWebNetThingHandler removed = registeredDevices.remove(ownId);
+        if (removed != null) {
+            topology.remove(removed);
+            startupSequencer.remove(removed);
+            shadowState.release(removed.shadowSlot);
+            removed.shadowSlot = OpenWebNetShadowState.NO_SLOT;
             logger.info("==OWN:BridgeHandler== un-registered device ownId={}", ownId); // TODO move to debug
         } else {
             logger.warn("==OWN:BridgeHandler== could not un-register ownId={} (not found)", ownId);
         }
     }
 
+    /**
+     * Add a point-to-point Lighting/Automation device to the area/group/general topology, using its WHERE and the
+     * optional <code>groups</code> config parameter
+     */
+    private void addToTopology(String ownId, OpenWebNetThingHandler thingHandler) {
+        Object addrtype = thingHandler.getThing().getConfiguration().get(CONFIG_PROPERTY_ADDRTYPE);
+        if (addrtype instanceof BigDecimal && ((BigDecimal) addrtype).intValue() != PARAMETER_TYPE_POINT_TO_POINT) {
+            return;
+        }
+        int dot = ownId.indexOf('.');
+        int who;
+        try {
+            who = Integer.parseInt(ownId.substring(0, dot));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return;
+        }
+        Object groups = thingHandler.getThing().getConfiguration().get(CONFIG_PROPERTY_GROUPS);
+        if (topology.add(thingHandler, who, ownId.substring(dot + 1), groups == null ? null : groups.toString())) {
+            logger.debug("==OWN:BridgeHandler== added ownId={} to topology (groups={})", ownId, groups);
+        }
+    }
+
     /**
      * Get a ThingHandler for a device associated to this BridgeHandler, based on ownID
      *
@@ -363,9 +861,26 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
         return registeredDevices.get(ownId);
     }
 
+    /**
+     * Returns true if devices should be discovered from received frames
+     */
+    private boolean isDiscoveryByActivationActive() {
+        return isBusGateway && ((deviceDiscoveryListener != null && !searchingGatewayDevices && scanIsActive)
+                || (discoveryByActivation && !scanIsActive));
+    }
+
     @Override
     public void onMessage(OpenMessage msg) {
         logger.trace("==OWN==  RECEIVED <<<<< {}", msg);
+        if (isBusGateway) {
+            int filterResult = frameFilter.check(msg.getValue(), isDiscoveryByActivationActive());
+            if (filterResult != OpenWebNetFrameFilter.ACCEPT) {
+                if (filterResult == OpenWebNetFrameFilter.DROP_GATEWAY_MGMT && msg instanceof GatewayManagement) {
+                    logger.debug("==OWN==  GatewayManagement WHAT = {}", ((GatewayManagement) msg).getWhat());
+                }
+                return;
+            }
+        }
         // TODO provide direct methods msg.isACK() and msg.isNACK()
         if (OpenMessage.ACK.equals(msg.getValue()) || OpenMessage.NACK.equals(msg.getValue())) {
             return; // we ignore ACKS/NACKS
@@ -382,24 +897,36 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
         if (baseMsg instanceof Lighting || baseMsg instanceof Automation || baseMsg instanceof Thermoregulation
                 || baseMsg instanceof EnergyManagement || baseMsg instanceof CENScenario
                 || baseMsg instanceof CENPlusScenario) {
-            String ownId = ownIdFromMessage(baseMsg);
-            logger.debug("==OWN==  ownId={}", ownId);
-            OpenWebNetThingHandler deviceHandler = getDevice(ownId);
+            OpenWebNetThingHandler deviceHandler;
+            OpenWebNetThingHandler @Nullable [] members = null;
+            if (isBusGateway) {
+                deviceHandler = routingIndex.lookup(baseMsg);
+                members = topology.members(baseMsg);
+            } else {
+                deviceHandler = getDevice(ownIdFromMessage(baseMsg));
+            }
+            if (members != null) {
+                // area/group/general frame: all member devices get the new state from this same frame
+                for (OpenWebNetThingHandler member : members) {
+                    dispatcher.dispatch(member, baseMsg);
+                    stateResync.answered(member);
+                    snapshotState(member, baseMsg);
+                }
+            }
             if (deviceHandler == null) {
-                if (isBusGateway && ((deviceDiscoveryListener != null && !searchingGatewayDevices && scanIsActive)
-                        || (discoveryByActivation && !scanIsActive))) {
+                if (members != null) {
+                    return;
+                } else if (isDiscoveryByActivationActive()) {
                     // try device discovery by activation
                     discoverByActivation(baseMsg);
-                } else {
-                    logger.debug("==OWN==  ownId={} has NO DEVICE associated, ignoring it", ownId);
+                } else if (logger.isDebugEnabled()) {
+                    logger.debug("==OWN==  ownId={} has NO DEVICE associated, ignoring it", ownIdFromMessage(baseMsg));
                 }
             } else {
-                // OpenWebNetThingHandler deviceHandler = (OpenWebNetThingHandler) device.getHandler();
-                // if (deviceHandler != null) {
-                deviceHandler.handleMessage(baseMsg);
-                // } else {
-                // logger.debug("==OWN== ownId={} has NO HANDLER associated, ignoring it", ownId);
-                // }
+                // handle the message outside the gateway reader thread, in order for this device
+                dispatcher.dispatch(deviceHandler, baseMsg);
+                stateResync.answered(deviceHandler);
+                snapshotState(deviceHandler, baseMsg);
             }
         } else {
             logger.debug("==OWN==  BridgeHandler ignoring frame {}. WHO={} is not supported by the binding", baseMsg,
@@ -408,6 +935,28 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
 
     }
 
+    /**
+     * Store the state frame received for a device in the state snapshot. CEN/CEN+ frames are events and not states,
+     * and the state of shutters is stored by their handler as estimated position.
+     */
+    private void snapshotState(OpenWebNetThingHandler handler, BaseOpenMessage msg) {
+        String ownId = handler.ownId;
+        if (ownId == null
+                || !(msg instanceof Lighting || msg instanceof Thermoregulation || msg instanceof EnergyManagement)) {
+            return;
+        }
+        String frame = msg.getValue();
+        String dimension = null;
+        if (frame.startsWith("*#")) { // dimension frame: *#WHO*WHERE*DIM*...##
+            String[] parts = frame.substring(0, frame.length() - 2).split("\\*");
+            if (parts.length < 5) {
+                return;
+            }
+            dimension = parts[3];
+        }
+        stateSnapshot.putFrame(ownId, dimension, frame);
+    }
+
     @Override
     public void onConnected() {
         isGatewayConnected = true;
@@ -426,7 +975,8 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
             }
         }
         updateStatus(ThingStatus.ONLINE);
-
+        stateResync.start(isBusGateway);
+        energySubscriptions.renewAll();
     }
 
     @Override
@@ -458,6 +1008,7 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
         }
         logger.warn("==OWN==  CONNECTION ERROR: {} - {}", cause, errMsg);
         isGatewayConnected = false;
+        stateResync.cancel();
         updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.OFFLINE.COMMUNICATION_ERROR, cause);
     }
 
@@ -472,6 +1023,7 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
     @Override
     public void onDisconnected() {
         isGatewayConnected = false;
+        stateResync.cancel();
         logger.warn("==OWN== ---------- DISCONNECTED from the gateway");
         updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.OFFLINE.COMMUNICATION_ERROR,
                 "The gateway HAS BEEN DISCONNECTED");
@@ -484,8 +1036,9 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
         logger.info("==OWN== ------------------- RE-CONNECTED to gateway!");
         updateStatus(ThingStatus.ONLINE);
         logger.debug("==OWN== Bridge status set to ONLINE");
-        // TODO refresh devices' status?
-
+        // devices states may have changed while disconnected
+        stateResync.start(isBusGateway);
+        energySubscriptions.renewAll();
     }
 
     /**
@@ -620,24 +1173,27 @@ public class OpenWebNetBridgeHandler extends ConfigStatusBridgeHandler implement
      * Normalize a WHERE string for Thermo and Zigbee devices
      */
     public String normalizeWhere(String where) {
-        String str = "";
         if (isBusGateway) {
-            if (where.indexOf('#') < 0) { // no hash present
-                str = where;
-            } else if (where.indexOf("#4#") > 0) { // local bus: APL#4#bus
-                str = where;
-            } else if (where.indexOf('#') == 0) { // thermo zone via central unit: #0 or #Z (Z=[1-99]) --> Z
-                str = where.substring(1);
-            } else if (where.indexOf('#') > 0) { // thermo zone and actuator N: Z#N (Z=[1-99], N=[1-9]) -- > Z
-                str = where.substring(0, where.indexOf('#'));
-            } else {
-                logger.warn("==OWN== normalizeWhere() unexpected WHERE: {}", where);
-                str = where;
-            }
-            return str;
+            return normalizeBusWhere(where);
         } else {
             return OpenMessageFactory.getAddrFromWhere(where);
         }
     }
 
+    /**
+     * Normalize a WHERE string of a BUS gateway (see {@link OpenWebNetRoutingIndex#busWhereKey(String)} for the same
+     * normalization without allocation)
+     */
+    static String normalizeBusWhere(String where) {
+        if (where.indexOf('#') < 0) { // no hash present
+            return where;
+        } else if (where.indexOf("#4#") > 0) { // local bus: APL#4#bus
+            return where;
+        } else if (where.indexOf('#') == 0) { // thermo zone via central unit: #0 or #Z (Z=[1-99]) --> Z
+            return where.substring(1);
+        } else { // thermo zone and actuator N: Z#N (Z=[1-99], N=[1-9]) -- > Z
+            return where.substring(0, where.indexOf('#'));
+        }
+    }
+
 }
@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+/**
+ * The {@link OpenWebNetCENButtons} is the pressure state machine of the 32 buttons of a CEN/CEN+ Scenario Control
+ * device. It turns the pressure frames of each button into button states (PRESSED, RELEASED, PRESSED_EXT,
+ * RELEASED_EXT) and into click events: single, double and triple clicks, start and end (with duration) of long
+ * pressures.
+ * <p>
+ * The state of each button (phase, clicks count and deadline) is packed in a single <code>long</code> of a fixed
+ * array and changed with compare-and-set, both by the thread handling frames and by the timer: no lock is taken and
+ * no object is allocated when a frame is handled. Deadlines (end of the multi-click window, missing release frames)
+ * are checked for all devices by a single periodic sweep of the bridge (see {@link OpenWebNetCENPressTimer}), active
+ * only while some button has a deadline pending.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetCENButtons {
+
+    static final int BUTTONS = 32;
+
+    // button states
+    static final int STATE_PRESSED = 0;
+    static final int STATE_RELEASED = 1;
+    static final int STATE_PRESSED_EXT = 2;
+    static final int STATE_RELEASED_EXT = 3;
+
+    // button events
+    static final int EVENT_SINGLE = 0;
+    static final int EVENT_DOUBLE = 1;
+    static final int EVENT_TRIPLE = 2;
+    static final int EVENT_HOLD_START = 3;
+    static final int EVENT_HOLD_END = 4;
+
+    static final long PRESS_TIMEOUT_MS = 510; // CEN PRESSURE not followed by other frames (e.g. from Touchscreens)
+    static final long CLICK_WINDOW_MS = 400; // max time between the clicks of a double/triple click
+    static final long HOLD_TIMEOUT_MS = 1500; // EXT_PRESSURE frames are repeated every 500ms while a button is held
+
+    /**
+     * Receives states and events of the buttons, from the thread handling frames or from the sweep timer
+     */
+    interface Listener {
+        void buttonState(int button, int state);
+
+        /**
+         * @param holdMs hold duration for {@link OpenWebNetCENButtons#EVENT_HOLD_END}, 0 otherwise
+         */
+        void buttonEvent(int button, int event, long holdMs);
+    }
+
+    // phases
+    private static final int IDLE = 0;
+    private static final int DOWN = 1; // CEN PRESSURE received, waiting for release or extended pressure
+    private static final int CLICKED = 2; // released, waiting for next click until the end of the click window
+    private static final int HOLD = 3; // long pressure
+    // flag of CLICKED: the last click was counted from an expired DOWN, its release or extended pressure may still come
+    private static final int SYNTHETIC = 0x4;
+
+    private static final int MAX_CLICKS = 15;
+
+    private final OpenWebNetCENPressTimer pressTimer;
+    private final Listener listener;
+    private final long epochNanos = System.nanoTime();
+
+    // state of each button: deadline (ms from epoch) << 8 | clicks << 4 | flags | phase
+    private final AtomicLongArray buttons = new AtomicLongArray(BUTTONS);
+    // hold start (ms from epoch), written before the CAS to HOLD and read after it
+    private final long[] holdStartMs = new long[BUTTONS];
+
+    // true while this device is in the sweep of the press timer
+    final AtomicBoolean swept = new AtomicBoolean();
+
+    /**
+     * @param pressTimer bridge timer checking the deadlines of the buttons
+     * @param listener   receives states and events of the buttons
+     */
+    OpenWebNetCENButtons(OpenWebNetCENPressTimer pressTimer, Listener listener) {
+        this.pressTimer = pressTimer;
+        this.listener = listener;
+    }
+
+    /**
+     * A button has been pressed and it is not known yet if it is a short or long pressure (CEN PRESSURE)
+     */
+    void pressed(int button) {
+        long now = nowMs();
+        long v;
+        do {
+            v = buttons.get(button);
+            if (phase(v) == HOLD) {
+                return;
+            }
+        } while (!buttons.compareAndSet(button, v, pack(DOWN, pendingClicks(v), now + PRESS_TIMEOUT_MS)));
+        pressTimer.watch(this);
+    }
+
+    /**
+     * A short pressure of a button has completed (CEN RELEASE_SHORT_PRESSURE, CEN+ SHORT_PRESSURE)
+     */
+    void clicked(int button) {
+        long now = nowMs();
+        long v;
+        int clicks;
+        do {
+            v = buttons.get(button);
+            // a late release of an expired DOWN completes the click already counted
+            clicks = isSynthetic(v) ? clicks(v) : Math.min(MAX_CLICKS, pendingClicks(v) + 1);
+        } while (!buttons.compareAndSet(button, v, pack(CLICKED, clicks, now + CLICK_WINDOW_MS)));
+        listener.buttonState(button, STATE_PRESSED);
+        pressTimer.watch(this);
+    }
+
+    /**
+     * A button is held (CEN EXT_PRESSURE, CEN+ START_EXT_PRESSURE and EXT_PRESSURE)
+     */
+    void held(int button) {
+        long now = nowMs();
+        long v;
+        do {
+            v = buttons.get(button);
+            if (phase(v) != HOLD) {
+                holdStartMs[button] = now;
+            }
+        } while (!buttons.compareAndSet(button, v, pack(HOLD, 0, now + HOLD_TIMEOUT_MS)));
+        if (phase(v) != HOLD) {
+            // a late extended pressure of an expired DOWN is a long pressure, not a click followed by a long pressure
+            int clicks = pendingClicks(v) - (isSynthetic(v) ? 1 : 0);
+            if (clicks > 0) { // clicks before the long pressure
+                listener.buttonEvent(button, clickEvent(clicks), 0);
+            }
+            listener.buttonEvent(button, EVENT_HOLD_START, 0);
+        }
+        listener.buttonState(button, STATE_PRESSED_EXT);
+        pressTimer.watch(this);
+    }
+
+    /**
+     * A long pressure of a button has ended (CEN/CEN+ RELEASE_EXT_PRESSURE)
+     */
+    void releasedHold(int button) {
+        long now = nowMs();
+        long v;
+        do {
+            v = buttons.get(button);
+            if (phase(v) != HOLD) {
+                listener.buttonState(button, STATE_RELEASED_EXT);
+                return;
+            }
+        } while (!buttons.compareAndSet(button, v, IDLE));
+        listener.buttonState(button, STATE_RELEASED_EXT);
+        listener.buttonEvent(button, EVENT_HOLD_END, now - holdStartMs[button]);
+    }
+
+    /**
+     * Complete the buttons whose deadline has expired. Called by the sweep of the press timer.
+     *
+     * @return true if some button still has a deadline pending
+     */
+    boolean sweep() {
+        long now = nowMs();
+        boolean pending = false;
+        for (int button = 0; button < BUTTONS; button++) {
+            long v;
+            long next;
+            do {
+                v = buttons.get(button);
+                if (phase(v) == IDLE) {
+                    break;
+                }
+                if (deadline(v) > now) {
+                    pending = true;
+                    break;
+                }
+                // a DOWN without other frames is a click (e.g. from Touchscreens), the others end
+                next = phase(v) == DOWN
+                        ? pack(CLICKED | SYNTHETIC, Math.min(MAX_CLICKS, clicks(v) + 1), now + CLICK_WINDOW_MS)
+                        : IDLE;
+                if (buttons.compareAndSet(button, v, next)) {
+                    expired(button, v, now);
+                    pending |= next != IDLE;
+                    break;
+                }
+            } while (true);
+        }
+        return pending;
+    }
+
+    /**
+     * Returns true if some button has a deadline pending
+     */
+    boolean isActive() {
+        for (int button = 0; button < BUTTONS; button++) {
+            if (phase(buttons.get(button)) != IDLE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void expired(int button, long v, long now) {
+        switch (phase(v)) {
+            case DOWN:
+                listener.buttonState(button, STATE_PRESSED);
+                break;
+            case CLICKED:
+                listener.buttonState(button, STATE_RELEASED);
+                listener.buttonEvent(button, clickEvent(clicks(v)), 0);
+                break;
+            case HOLD: // release frame lost
+                listener.buttonState(button, STATE_RELEASED_EXT);
+                listener.buttonEvent(button, EVENT_HOLD_END, now - holdStartMs[button]);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private long nowMs() {
+        return (System.nanoTime() - epochNanos) / 1000000;
+    }
+
+    private static int clickEvent(int clicks) {
+        return clicks <= 1 ? EVENT_SINGLE : clicks == 2 ? EVENT_DOUBLE : EVENT_TRIPLE;
+    }
+
+    private static int pendingClicks(long v) {
+        int phase = phase(v);
+        return phase == DOWN || phase == CLICKED ? clicks(v) : 0;
+    }
+
+    private static long pack(int phase, int clicks, long deadlineMs) {
+        return deadlineMs << 8 | clicks << 4 | phase;
+    }
+
+    private static int phase(long v) {
+        return (int) (v & 0x3);
+    }
+
+    private static boolean isSynthetic(long v) {
+        return (v & 0x3) == CLICKED && (v & SYNTHETIC) != 0;
+    }
+
+    private static int clicks(long v) {
+        return (int) (v >> 4 & 0xF);
+    }
+
+    private static long deadline(long v) {
+        return v >>> 8;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetCENPressTimer} checks the deadlines of the buttons of all CEN/CEN+ devices of a bridge (see
+ * {@link OpenWebNetCENButtons}) with a single sweep every {@link #SWEEP_MS}. A device joins the sweep when one of its
+ * buttons gets a deadline and leaves it when all its buttons are idle; the sweep timer runs only while some device is
+ * in the sweep, so that many keypads pressed together use a single timer.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetCENPressTimer {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetCENPressTimer.class);
+
+    static final long SWEEP_MS = 50;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final OpenWebNetTimerService timers;
+
+    // all fields guarded by this
+    private @Nullable OpenWebNetCENButtons[] swept = new OpenWebNetCENButtons[INITIAL_CAPACITY];
+    private int count;
+    private OpenWebNetTimerService.@Nullable Timeout sweepSchedule;
+    private long sweeps;
+    private int maxDevices;
+
+    // copy of swept devices used by the sweep, only accessed by the timer thread running the sweep
+    private @Nullable OpenWebNetCENButtons[] sweepBuffer = new OpenWebNetCENButtons[INITIAL_CAPACITY];
+
+    /**
+     * @param timers timer service running the sweep
+     */
+    OpenWebNetCENPressTimer(OpenWebNetTimerService timers) {
+        this.timers = timers;
+    }
+
+    /**
+     * A button of the device has a deadline: add the device to the sweep, if not already in it
+     */
+    void watch(OpenWebNetCENButtons buttons) {
+        if (!buttons.swept.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (this) {
+            if (count == swept.length) {
+                swept = Arrays.copyOf(swept, count * 2);
+            }
+            swept[count++] = buttons;
+            maxDevices = Math.max(maxDevices, count);
+            if (sweepSchedule == null) {
+                sweepSchedule = timers.schedule(this::sweep, SWEEP_MS);
+            }
+        }
+    }
+
+    /**
+     * Remove the device from the sweep (its thing is disposed)
+     */
+    synchronized void unwatch(OpenWebNetCENButtons buttons) {
+        remove(buttons);
+    }
+
+    /**
+     * Stop the sweep and forget all devices
+     */
+    synchronized void shutdown() {
+        for (int i = 0; i < count; i++) {
+            OpenWebNetCENButtons buttons = swept[i];
+            if (buttons != null) {
+                buttons.swept.set(false);
+            }
+        }
+        Arrays.fill(swept, null);
+        count = 0;
+        OpenWebNetTimerService.Timeout t = sweepSchedule;
+        if (t != null) {
+            t.cancel();
+            sweepSchedule = null;
+        }
+    }
+
+    /**
+     * Returns a human readable summary of sweep statistics
+     */
+    synchronized String getStatistics() {
+        return String.format("pressing=%d maxPressing=%d sweeps=%d", count, maxDevices, sweeps);
+    }
+
+    private void remove(OpenWebNetCENButtons buttons) {
+        for (int i = 0; i < count; i++) {
+            if (swept[i] == buttons) {
+                swept[i] = swept[--count];
+                swept[count] = null;
+                buttons.swept.set(false);
+                return;
+            }
+        }
+    }
+
+    private void sweep() {
+        @Nullable
+        OpenWebNetCENButtons[] buffer;
+        int n;
+        synchronized (this) {
+            n = count;
+            if (sweepBuffer.length < n) {
+                sweepBuffer = new OpenWebNetCENButtons[swept.length];
+            }
+            buffer = sweepBuffer;
+            System.arraycopy(swept, 0, buffer, 0, n);
+            sweeps++;
+        }
+        // devices are swept outside the lock: their listeners update things states
+        for (int i = 0; i < n; i++) {
+            OpenWebNetCENButtons buttons = buffer[i];
+            buffer[i] = null;
+            if (buttons == null) {
+                continue;
+            }
+            boolean pending;
+            try {
+                pending = buttons.sweep();
+            } catch (RuntimeException e) {
+                logger.debug("==OWN:CENPressTimer== could not update buttons: {}", e.getMessage());
+                pending = buttons.isActive();
+            }
+            if (!pending) {
+                synchronized (this) {
+                    remove(buttons);
+                }
+                if (buttons.isActive()) { // a frame arrived after the sweep of the device
+                    watch(buttons);
+                }
+            }
+        }
+        synchronized (this) {
+            if (sweepSchedule != null) { // not shut down
+                sweepSchedule = count > 0 ? timers.schedule(this::sweep, SWEEP_MS) : null;
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.smarthome.core.thing.ChannelUID;
+import org.eclipse.smarthome.core.types.Command;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetCommandCoalescer} implements latest-wins coalescing of commands for the channels of a device.
+ * While a command for a channel is in flight (its frames have not been answered by the gateway yet, see
+ * {@link #track(CompletableFuture)}) and for the following coalescing window, newer commands for the same channel
+ * replace the pending one: when the channel is free again only the latest command is executed. Commands that are not
+ * coalesced (e.g. OFF after a slider burst) are executed at once and discard the pending command of their channel, see
+ * {@link #supersede(ChannelUID)}.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetCommandCoalescer {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetCommandCoalescer.class);
+
+    // holds the future of the last frame sent by the command being executed on the current thread
+    private static final ThreadLocal<@Nullable CompletableFuture<?>[]> TRACKED = new ThreadLocal<>();
+
+    private final BiConsumer<ChannelUID, Command> executor;
+    private final OpenWebNetBridgeHandler bridgeHandler;
+    private final Map<String, Slot> slots = new HashMap<>();
+
+    /**
+     * @param executor      executes a command for a channel
+     * @param bridgeHandler bridge providing the coalescing window, counters and the timer service used to run pending
+     *                          commands when the channel is free
+     */
+    OpenWebNetCommandCoalescer(BiConsumer<ChannelUID, Command> executor, OpenWebNetBridgeHandler bridgeHandler) {
+        this.executor = executor;
+        this.bridgeHandler = bridgeHandler;
+    }
+
+    /**
+     * Records the future of a frame sent while executing a command: the channel stays in flight until it completes.
+     * Has no effect if called outside a coalesced command execution.
+     */
+    static <T> CompletableFuture<T> track(CompletableFuture<T> future) {
+        CompletableFuture<?>[] holder = TRACKED.get();
+        if (holder != null) {
+            holder[0] = future;
+        }
+        return future;
+    }
+
+    /**
+     * Execute a command now if the channel is free, otherwise keep it as the pending command for the channel,
+     * replacing the previous pending command
+     */
+    void submit(ChannelUID channel, Command command) {
+        synchronized (slots) {
+            Slot slot = slots.computeIfAbsent(channel.getId(), k -> new Slot());
+            if (slot.busy) {
+                if (slot.pending != null) {
+                    bridgeHandler.countCoalescedCommand(true);
+                    logger.debug("==OWN:Coalescer== channel {}: command {} replaced by {}", channel,
+                            slot.pending, command);
+                }
+                slot.pending = command;
+                slot.pendingChannel = channel;
+                return;
+            }
+            slot.busy = true;
+        }
+        execute(channel, command);
+    }
+
+    /**
+     * A command that is not coalesced is being executed for the channel: discard the pending command of the channel, so
+     * that it is not executed after the newer command
+     */
+    void supersede(ChannelUID channel) {
+        synchronized (slots) {
+            Slot slot = slots.get(channel.getId());
+            if (slot != null && slot.pending != null) {
+                bridgeHandler.countCoalescedCommand(true);
+                logger.debug("==OWN:Coalescer== channel {}: command {} superseded", channel, slot.pending);
+                slot.pending = null;
+                slot.pendingChannel = null;
+            }
+        }
+    }
+
+    /**
+     * Discard all pending commands
+     */
+    void clear() {
+        synchronized (slots) {
+            slots.clear();
+        }
+    }
+
+    private void execute(ChannelUID channel, Command command) {
+        bridgeHandler.countCoalescedCommand(false);
+        CompletableFuture<?>[] holder = new CompletableFuture<?>[1];
+        TRACKED.set(holder);
+        try {
+            executor.accept(channel, command);
+        } catch (RuntimeException e) {
+            logger.warn("==OWN:Coalescer== exception executing command {} for channel {}: {}", command, channel,
+                    e.getMessage());
+        } finally {
+            TRACKED.remove();
+        }
+        CompletableFuture<?> inFlight = holder[0];
+        if (inFlight == null || inFlight.isDone()) {
+            release(channel);
+        } else {
+            inFlight.whenComplete((r, e) -> release(channel));
+        }
+    }
+
+    /** the in-flight command completed: after the window, execute the pending command if any */
+    private void release(ChannelUID channel) {
+        bridgeHandler.getTimers().schedule(() -> next(channel), bridgeHandler.getCoalescingWindow());
+    }
+
+    private void next(ChannelUID channel) {
+        Command command;
+        ChannelUID pendingChannel;
+        synchronized (slots) {
+            Slot slot = slots.get(channel.getId());
+            if (slot == null) {
+                return;
+            }
+            command = slot.pending;
+            pendingChannel = slot.pendingChannel;
+            slot.pending = null;
+            slot.pendingChannel = null;
+            if (command == null || pendingChannel == null) {
+                slot.busy = false;
+                return;
+            }
+        }
+        execute(pendingChannel, command);
+    }
+
+    private static class Slot {
+        private boolean busy;
+        private @Nullable Command pending;
+        private @Nullable ChannelUID pendingChannel;
+    }
+}
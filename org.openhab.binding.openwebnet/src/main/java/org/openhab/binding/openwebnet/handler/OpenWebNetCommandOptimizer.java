@@ -0,0 +1,270 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openwebnet.message.Automation;
+import org.openwebnet.message.BaseOpenMessage;
+import org.openwebnet.message.Lighting;
+import org.openwebnet.message.OpenMessage;
+import org.openwebnet.message.OpenMessageFactory;
+import org.openwebnet.message.Who;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetCommandOptimizer} collects Lighting ON/OFF and Automation UP/DOWN/STOP point-to-point commands
+ * received within a short window. When all the members of a group declared complete by the user (see
+ * {@link OpenWebNetTopology#isComplete(long)}) get the same command in the same window, a single GROUP frame is sent
+ * instead of one frame per device. Member devices get their new state from the GROUP frame received back from the BUS,
+ * like for any other group command.
+ * <p>
+ * Areas and general are never used: they may include BUS devices not configured in openHAB, which would be switched
+ * too. The optimizer is disabled by default (window 0), as it delays ON/OFF commands by the window.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetCommandOptimizer {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetCommandOptimizer.class);
+
+    private static final int LIGHTING_WHO = Who.LIGHTING.value();
+    private static final int AUTOMATION_WHO = Who.AUTOMATION.value();
+
+    private final OpenWebNetTimerService timers;
+    private final OpenWebNetTopology topology;
+    private final Function<OpenMessage, CompletableFuture<OpenMessage>> sender;
+
+    private final List<PendingCommand> pending = new ArrayList<>(); // guarded by this
+    private OpenWebNetTimerService.@Nullable Timeout flushSchedule; // guarded by this
+    private volatile int window;
+
+    // statistics
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong pointFrames = new AtomicLong();
+    private final AtomicLong groupFrames = new AtomicLong();
+
+    /**
+     * @param timers   timer service used to flush collected commands
+     * @param topology area/group/general membership of devices
+     * @param sender   sends a frame to the gateway
+     */
+    OpenWebNetCommandOptimizer(OpenWebNetTimerService timers, OpenWebNetTopology topology,
+            Function<OpenMessage, CompletableFuture<OpenMessage>> sender) {
+        this.timers = timers;
+        this.topology = topology;
+        this.sender = sender;
+    }
+
+    /**
+     * @param window collection window (ms). 0 disables the optimizer
+     */
+    void setWindow(int window) {
+        this.window = window;
+    }
+
+    int getWindow() {
+        return window;
+    }
+
+    /**
+     * Send a point-to-point ON/OFF or UP/DOWN/STOP command for a device, possibly merged with commands for other devices
+     * into a GROUP frame
+     *
+     * @param handler  the device handler
+     * @param pointMsg the point-to-point command
+     * @return a future completed with the gateway response (ACK/NACK) to the frame that was sent for this command
+     */
+    CompletableFuture<OpenMessage> submit(OpenWebNetThingHandler handler, BaseOpenMessage pointMsg) {
+        commands.incrementAndGet();
+        int what = whatOf(pointMsg);
+        if (window <= 0 || what < 0 || !hasCompleteTarget(handler)) {
+            pointFrames.incrementAndGet();
+            return sender.apply(pointMsg);
+        }
+        CompletableFuture<OpenMessage> future = new CompletableFuture<>();
+        synchronized (this) {
+            pending.add(new PendingCommand(handler, pointMsg.getWho().value(), what, pointMsg, future));
+            if (flushSchedule == null) {
+                flushSchedule = timers.schedule(this::flush, window);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Returns a human readable summary of optimizer statistics
+     */
+    String getStatistics() {
+        return String.format("commands=%d pointFrames=%d groupFrames=%d window=%dms", commands.get(), pointFrames.get(),
+                groupFrames.get(), window);
+    }
+
+    private boolean hasCompleteTarget(OpenWebNetThingHandler handler) {
+        for (long key : topology.targetKeys(handler)) {
+            if (topology.isComplete(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void flush() {
+        List<PendingCommand> commandsToSend;
+        synchronized (this) {
+            commandsToSend = new ArrayList<>(pending);
+            pending.clear();
+            flushSchedule = null;
+        }
+        // latest command wins for each device
+        Map<OpenWebNetThingHandler, PendingCommand> latest = new IdentityHashMap<>();
+        for (PendingCommand cmd : commandsToSend) {
+            PendingCommand previous = latest.put(cmd.handler, cmd);
+            if (previous != null) {
+                OpenWebNetCommandSender.chain(cmd.future, previous.future);
+            }
+        }
+        // group devices by WHO and WHAT, keeping command order
+        Map<Integer, List<PendingCommand>> byCommand = new LinkedHashMap<>();
+        for (PendingCommand cmd : commandsToSend) {
+            if (latest.get(cmd.handler) == cmd) {
+                byCommand.computeIfAbsent(cmd.who * 1000 + cmd.what, k -> new ArrayList<>()).add(cmd);
+            }
+        }
+        for (List<PendingCommand> sameCommand : byCommand.values()) {
+            sendOptimized(sameCommand);
+        }
+    }
+
+    /**
+     * Send the same command for a set of devices using the largest complete groups whose members all got the command
+     */
+    private void sendOptimized(List<PendingCommand> sameCommand) {
+        Map<OpenWebNetThingHandler, PendingCommand> commanded = new IdentityHashMap<>();
+        for (PendingCommand cmd : sameCommand) {
+            commanded.put(cmd.handler, cmd);
+        }
+        List<Long> candidates = topology.candidateTargets(commanded.keySet(), topology::isComplete);
+        Set<OpenWebNetThingHandler> covered = Collections.newSetFromMap(new IdentityHashMap<>());
+        PendingCommand first = sameCommand.get(0);
+        for (long key : candidates) {
+            OpenWebNetThingHandler[] members = topology.members(key);
+            if (members == null || members.length < 2 || !coversAll(members, commanded, covered)) {
+                continue;
+            }
+            OpenMessage targetMsg = targetFrame(key, first.who, first.what);
+            if (targetMsg == null) {
+                continue;
+            }
+            logger.debug("==OWN:CommandOptimizer== sending {} for {} devices instead of point-to-point frames",
+                    targetMsg, members.length);
+            groupFrames.incrementAndGet();
+            CompletableFuture<OpenMessage> targetFuture = sender.apply(targetMsg);
+            for (OpenWebNetThingHandler member : members) {
+                covered.add(member);
+                OpenWebNetCommandSender.chain(targetFuture, commanded.get(member).future);
+            }
+        }
+        for (PendingCommand cmd : sameCommand) {
+            if (!covered.contains(cmd.handler)) {
+                pointFrames.incrementAndGet();
+                OpenWebNetCommandSender.chain(sender.apply(cmd.msg), cmd.future);
+            }
+        }
+    }
+
+    private static boolean coversAll(OpenWebNetThingHandler[] members,
+            Map<OpenWebNetThingHandler, PendingCommand> commanded, Set<OpenWebNetThingHandler> covered) {
+        for (OpenWebNetThingHandler member : members) {
+            if (!commanded.containsKey(member) || covered.contains(member)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the GROUP frame for a target, or returns null if the command is not supported
+     */
+    private static @Nullable OpenMessage targetFrame(long key, int who, int what) {
+        String where = OpenWebNetTopology.targetWhere(key);
+        BaseOpenMessage.Type type = OpenWebNetTopology.targetType(key);
+        if (OpenWebNetTopology.isLocalBusTarget(key)) {
+            // local bus forms are not supported by message builders
+            return OpenMessageFactory.parse(
+                    "*" + who + "*" + what + "*" + (type == BaseOpenMessage.Type.GROUP ? "#" : "") + where + "##");
+        }
+        if (who == LIGHTING_WHO) {
+            if (what == Lighting.WHAT.ON.value()) {
+                return Lighting.requestTurnOn(where, type);
+            } else if (what == Lighting.WHAT.OFF.value()) {
+                return Lighting.requestTurnOff(where, type);
+            }
+        } else if (who == AUTOMATION_WHO) {
+            if (what == Automation.WHAT.UP.value()) {
+                return Automation.requestMoveUp(where, type);
+            } else if (what == Automation.WHAT.DOWN.value()) {
+                return Automation.requestMoveDown(where, type);
+            } else if (what == Automation.WHAT.STOP.value()) {
+                return Automation.requestStop(where, type);
+            }
+        }
+        return null;
+    }
+
+    /** returns the WHAT of a Lighting ON/OFF or Automation UP/DOWN/STOP command, or -1 */
+    private static int whatOf(BaseOpenMessage msg) {
+        if (msg instanceof Lighting) {
+            Lighting.WHAT what = (Lighting.WHAT) msg.getWhat();
+            if (what == Lighting.WHAT.ON || what == Lighting.WHAT.OFF) {
+                return what.value();
+            }
+        } else if (msg instanceof Automation) {
+            Automation.WHAT what = (Automation.WHAT) msg.getWhat();
+            if (what == Automation.WHAT.UP || what == Automation.WHAT.DOWN || what == Automation.WHAT.STOP) {
+                return what.value();
+            }
+        }
+        return -1;
+    }
+
+    private static class PendingCommand {
+        private final OpenWebNetThingHandler handler;
+        private final int who;
+        private final int what;
+        private final BaseOpenMessage msg;
+        private final CompletableFuture<OpenMessage> future;
+
+        PendingCommand(OpenWebNetThingHandler handler, int who, int what, BaseOpenMessage msg,
+                CompletableFuture<OpenMessage> future) {
+            this.handler = handler;
+            this.who = who;
+            this.what = what;
+            this.msg = msg;
+            this.future = future;
+        }
+    }
+}
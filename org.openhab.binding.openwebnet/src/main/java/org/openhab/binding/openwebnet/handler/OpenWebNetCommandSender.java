@@ -0,0 +1,376 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openwebnet.OpenGateway;
+import org.openwebnet.OpenSession;
+import org.openwebnet.OpenSessionError;
+import org.openwebnet.message.OpenMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetCommandSender} is the non-blocking send layer of the bridge.
+ * Commands are queued and sent to the gateway by a dedicated sender thread (gateway send is synchronous: it waits for
+ * the gateway ACK/NACK), so that thing handlers never block on the gateway. Each command returns a
+ * {@link CompletableFuture} completed with the ACK or NACK response, or exceptionally with a {@link TimeoutException}
+ * (no response) or an {@link IOException} (gateway not connected or connection error).
+ * <p>
+ * Outgoing frames are scheduled by class of service ({@link Qos}): queued frames of a class are always sent before
+ * frames of less urgent classes, and frames of the same class are sent in deadline (= submission) order. Preemption
+ * happens at frame boundaries: the gateway allows one command in flight at a time, so a shutter STOP waits at most for
+ * the frame being sent, even if many refresh or background frames are queued. Queued frames are never discarded and
+ * never wait forever: each time a frame waits for the deadline of its class it is promoted to the next more urgent
+ * class, and frames of the same (promoted) class are sent earliest deadline first. A frame sent after its class
+ * deadline is counted as a missed deadline. The queueing delay of each class is recorded in a histogram.
+ * <p>
+ * A batch of commands is queued at once and sent back-to-back: the next command is written as soon as the ACK/NACK of
+ * the previous one is received, so a batch only waits for the gateway response time of each frame, without any other
+ * command of the same or a less urgent class in between (except frames promoted after waiting for their deadline).
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetCommandSender {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetCommandSender.class);
+
+    /**
+     * Classes of service for outgoing frames, from the most to the least urgent, with their deadline (ms): frames not
+     * sent within the deadline are promoted to the next class, and counted as missed when sent
+     */
+    enum Qos {
+        REALTIME_STOP("stop", 2000),
+        USER_COMMAND("user", 5000),
+        STATE_REFRESH("refresh", 10000),
+        BACKGROUND("background", 60000);
+
+        private final String label;
+        private final long deadlineMs;
+
+        Qos(String label, long deadlineMs) {
+            this.label = label;
+            this.deadlineMs = deadlineMs;
+        }
+    }
+
+    // queueing delay histogram buckets upper bounds (ms), last bucket is unbounded
+    private static final long[] DELAY_BUCKETS_MS = { 1, 5, 10, 50, 100, 500, 1000, 5000 };
+
+    private static final Qos[] CLASSES = Qos.values();
+
+    // one FIFO queue for each class: frames of a class are queued in deadline order
+    @SuppressWarnings("unchecked")
+    private final ConcurrentLinkedQueue<PendingCommand>[] queues = new ConcurrentLinkedQueue[CLASSES.length];
+    private final Semaphore queued = new Semaphore(0); // number of queued frames
+    private final Thread senderThread;
+    private volatile boolean running = true;
+    private volatile @Nullable OpenGateway gateway;
+
+    // statistics
+    private final AtomicLong acked = new AtomicLong();
+    private final AtomicLong nacked = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchFrames = new AtomicLong();
+    private final AtomicLong totalBatchNanos = new AtomicLong();
+    private final AtomicLong maxBatchNanos = new AtomicLong();
+    private volatile long lastBatchNanos;
+    private final AtomicLongArray[] queueDelayHistogram = new AtomicLongArray[Qos.values().length];
+    private final AtomicLongArray deadlineMissed = new AtomicLongArray(Qos.values().length);
+    private final AtomicLongArray promotedSent = new AtomicLongArray(Qos.values().length);
+
+    /**
+     * @param name name of the sender thread
+     */
+    OpenWebNetCommandSender(String name) {
+        for (int i = 0; i < queueDelayHistogram.length; i++) {
+            queueDelayHistogram[i] = new AtomicLongArray(DELAY_BUCKETS_MS.length + 1);
+            queues[i] = new ConcurrentLinkedQueue<>();
+        }
+        senderThread = new Thread(this::run, name);
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    void setGateway(@Nullable OpenGateway gateway) {
+        this.gateway = gateway;
+    }
+
+    /**
+     * Queue a command to be sent to the gateway
+     *
+     * @param msg the command
+     * @param qos the class of service of the command
+     * @return a future completed with the gateway response (ACK/NACK)
+     */
+    synchronized CompletableFuture<OpenMessage> submit(OpenMessage msg, Qos qos) {
+        CompletableFuture<OpenMessage> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new IOException("command sender stopped"));
+            return future;
+        }
+        queues[qos.ordinal()].add(new PendingCommand(msg, qos, future));
+        queued.release();
+        return future;
+    }
+
+    /**
+     * Queue a batch of commands to be sent back-to-back to the gateway, in order
+     *
+     * @param msgs the commands
+     * @param qos  the class of service of the commands
+     * @return a future completed with the gateway responses (ACK/NACK), in the same order of the commands, or
+     *         exceptionally if one of the commands failed
+     */
+    synchronized CompletableFuture<List<OpenMessage>> submitBatch(List<OpenMessage> msgs, Qos qos) {
+        long start = System.nanoTime();
+        List<CompletableFuture<OpenMessage>> futures = new ArrayList<>(msgs.size());
+        for (OpenMessage msg : msgs) {
+            futures.add(submit(msg, qos));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<OpenMessage> responses = new ArrayList<>(futures.size());
+            for (CompletableFuture<OpenMessage> f : futures) {
+                responses.add(f.join());
+            }
+            long elapsed = System.nanoTime() - start;
+            batches.incrementAndGet();
+            batchFrames.addAndGet(responses.size());
+            totalBatchNanos.addAndGet(elapsed);
+            lastBatchNanos = elapsed;
+            if (elapsed > maxBatchNanos.get()) {
+                maxBatchNanos.set(elapsed);
+            }
+            return responses;
+        });
+    }
+
+    /**
+     * Stop the sender thread. Queued commands are completed exceptionally.
+     */
+    void shutdown() {
+        running = false;
+        senderThread.interrupt();
+        for (ConcurrentLinkedQueue<PendingCommand> q : queues) {
+            PendingCommand cmd;
+            while ((cmd = q.poll()) != null) {
+                cmd.future.completeExceptionally(new IOException("command sender stopped"));
+            }
+        }
+    }
+
+    /**
+     * Returns current number of queued commands
+     */
+    int getQueueSize() {
+        return queued.availablePermits();
+    }
+
+    /**
+     * Returns a human readable summary of command statistics
+     */
+    String getStatistics() {
+        long ok = acked.get() + nacked.get();
+        long avgMicros = ok == 0 ? 0 : totalLatencyNanos.get() / ok / 1000;
+        long b = batches.get();
+        long avgBatchMillis = b == 0 ? 0 : totalBatchNanos.get() / b / 1000000;
+        return String.format(
+                "queue=%d ack=%d nack=%d timeout=%d error=%d avgLatency=%dus maxLatency=%dus batches=%d batchFrames=%d avgBatch=%dms maxBatch=%dms lastBatch=%dms",
+                getQueueSize(), acked.get(), nacked.get(), timedOut.get(), failed.get(), avgMicros,
+                maxLatencyNanos.get() / 1000, b, batchFrames.get(), avgBatchMillis, maxBatchNanos.get() / 1000000,
+                lastBatchNanos / 1000000);
+    }
+
+    /**
+     * Returns the queueing delay histogram for each class of service, the number of frames sent after their deadline
+     * and the number of frames sent promoted to a more urgent class
+     */
+    String getQueueDelayStatistics() {
+        StringBuilder sb = new StringBuilder("buckets(ms)=");
+        for (long b : DELAY_BUCKETS_MS) {
+            sb.append(b).append(',');
+        }
+        sb.append('+');
+        for (Qos qos : Qos.values()) {
+            AtomicLongArray h = queueDelayHistogram[qos.ordinal()];
+            sb.append(' ').append(qos.label).append('=');
+            for (int i = 0; i < h.length(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(h.get(i));
+            }
+            sb.append(" missed=").append(deadlineMissed.get(qos.ordinal()));
+            sb.append(" promoted=").append(promotedSent.get(qos.ordinal()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Complete a future with the response (or failure) of another one, e.g. the future of a point-to-point command
+     * with the future of the AREA/GROUP frame sent in its place
+     */
+    static void chain(CompletableFuture<OpenMessage> from, CompletableFuture<OpenMessage> to) {
+        from.whenComplete((response, e) -> {
+            if (e != null) {
+                to.completeExceptionally(e);
+            } else {
+                to.complete(response);
+            }
+        });
+    }
+
+    private void recordQueueDelay(Qos qos, long delayNanos) {
+        long delayMs = TimeUnit.NANOSECONDS.toMillis(delayNanos);
+        int bucket = 0;
+        while (bucket < DELAY_BUCKETS_MS.length && delayMs >= DELAY_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        queueDelayHistogram[qos.ordinal()].incrementAndGet(bucket);
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                queued.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+            PendingCommand cmd = next(System.nanoTime());
+            if (cmd == null || cmd.future.isDone()) { // stopped, or cancelled by caller
+                continue;
+            }
+            send(cmd);
+        }
+    }
+
+    /**
+     * Remove the next frame to send: the frame of the most urgent class after promotion of waiting frames, earliest
+     * deadline first within the same class. The head of each queue is the frame of its class that waited most, so only
+     * heads are compared.
+     */
+    private @Nullable PendingCommand next(long now) {
+        PendingCommand best = null;
+        int bestRank = Integer.MAX_VALUE;
+        for (ConcurrentLinkedQueue<PendingCommand> q : queues) {
+            PendingCommand head = q.peek();
+            if (head == null) {
+                continue;
+            }
+            int rank = head.rank(now);
+            if (best == null || rank < bestRank || (rank == bestRank && head.deadlineNanos - best.deadlineNanos < 0)) {
+                best = head;
+                bestRank = rank;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        queues[best.qos.ordinal()].poll();
+        if (bestRank < best.qos.ordinal()) {
+            promotedSent.incrementAndGet(best.qos.ordinal());
+        }
+        return best;
+    }
+
+    private void send(PendingCommand cmd) {
+        long now = System.nanoTime();
+        recordQueueDelay(cmd.qos, now - cmd.createdNanos);
+        if (now - cmd.deadlineNanos > 0) { // late, but still sent: dropping user commands or batch frames loses data
+            deadlineMissed.incrementAndGet(cmd.qos.ordinal());
+            logger.debug("==OWN:CommandSender== {} command {} not sent within {}ms, sending it late", cmd.qos.label,
+                    cmd.msg, cmd.qos.deadlineMs);
+        }
+        OpenGateway gw = gateway;
+        if (gw == null || !gw.isConnected()) {
+            failed.incrementAndGet();
+            cmd.future.completeExceptionally(new IOException("gateway not connected"));
+            return;
+        }
+        try {
+            OpenSession session = cmd.qos == Qos.REALTIME_STOP ? gw.sendHighPriority(cmd.msg) : gw.send(cmd.msg);
+            OpenMessage response = session.getFinalResponse();
+            if (response == null) {
+                OpenSessionError error = session.getFinalError();
+                if (error == null) {
+                    timedOut.incrementAndGet();
+                    logger.debug("==OWN:CommandSender== no response from gateway for command {}", cmd.msg);
+                    cmd.future.completeExceptionally(new TimeoutException("no response for command: " + cmd.msg));
+                } else {
+                    failed.incrementAndGet();
+                    logger.debug("==OWN:CommandSender== error {} sending command {}", error, cmd.msg);
+                    cmd.future.completeExceptionally(new IOException("gateway error " + error + ": " + cmd.msg));
+                }
+                return;
+            }
+            long latency = System.nanoTime() - cmd.createdNanos;
+            totalLatencyNanos.addAndGet(latency);
+            if (latency > maxLatencyNanos.get()) {
+                maxLatencyNanos.set(latency);
+            }
+            if (OpenMessage.NACK.equals(response.getValue())) {
+                nacked.incrementAndGet();
+                logger.debug("==OWN:CommandSender== NACK received for command {}", cmd.msg);
+            } else {
+                acked.incrementAndGet();
+            }
+            cmd.future.complete(response);
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            logger.warn("==OWN:CommandSender== exception sending command {}: {}", cmd.msg, e.getMessage());
+            cmd.future.completeExceptionally(e);
+        }
+    }
+
+    private static final class PendingCommand {
+        private final OpenMessage msg;
+        private final Qos qos;
+        private final long createdNanos = System.nanoTime();
+        private final long deadlineNanos;
+        private final CompletableFuture<OpenMessage> future;
+
+        PendingCommand(OpenMessage msg, Qos qos, CompletableFuture<OpenMessage> future) {
+            this.msg = msg;
+            this.qos = qos;
+            this.deadlineNanos = createdNanos + TimeUnit.MILLISECONDS.toNanos(qos.deadlineMs);
+            this.future = future;
+        }
+
+        /**
+         * Returns the class (ordinal) this frame is scheduled with: one class more urgent for each deadline of its
+         * class it waited
+         */
+        int rank(long now) {
+            long waited = now - createdNanos;
+            long promotions = waited <= 0 ? 0 : waited / TimeUnit.MILLISECONDS.toNanos(qos.deadlineMs);
+            return (int) Math.max(0, qos.ordinal() - promotions);
+        }
+    }
+}
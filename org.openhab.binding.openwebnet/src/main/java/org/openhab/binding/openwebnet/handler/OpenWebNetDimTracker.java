@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+/**
+ * The {@link OpenWebNetDimTracker} keeps the dim commands sent to a dimmer that have not been notified back yet by the
+ * BUS (in-flight commands), so that brightness frames can be recognised as echoes of our own commands or as changes
+ * made by someone else (e.g. a wall switch).
+ * <p>
+ * In-flight levels are kept in send order in a small fixed ring. A frame reporting an in-flight level is an echo: that
+ * command and all the ones sent before it are completed. Any other frame is an external change: in-flight commands
+ * are forgotten, so that their late echoes are applied as changes. Commands not notified back within
+ * {@link #ECHO_TIMEOUT_MS} are forgotten.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetDimTracker {
+
+    static final long ECHO_TIMEOUT_MS = 5000;
+
+    private static final int CAPACITY = 8; // when full, the oldest in-flight command is forgotten
+    private static final long ECHO_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(ECHO_TIMEOUT_MS);
+
+    // all fields guarded by this
+    private final int[] levels = new int[CAPACITY];
+    private final long[] sentNanos = new long[CAPACITY];
+    private int head; // oldest in-flight command
+    private int count;
+
+    // statistics
+    private long echoes;
+    private long external;
+    private long expired;
+
+    /**
+     * A dim command has been sent
+     *
+     * @param level the level (WHAT 0-10) sent to the dimmer
+     */
+    synchronized void sent(int level) {
+        if (count == CAPACITY) {
+            head = (head + 1) % CAPACITY;
+            count--;
+            expired++;
+        }
+        int i = (head + count) % CAPACITY;
+        levels[i] = level;
+        sentNanos[i] = System.nanoTime();
+        count++;
+    }
+
+    /**
+     * A brightness level has been notified by the BUS
+     *
+     * @param level the level (WHAT 0-10) notified
+     * @return true if the level is the echo of an in-flight command, false if it is an external change
+     */
+    synchronized boolean isEcho(int level) {
+        prune();
+        for (int n = 0; n < count; n++) {
+            if (levels[(head + n) % CAPACITY] == level) {
+                head = (head + n + 1) % CAPACITY;
+                count -= n + 1;
+                echoes++;
+                return true;
+            }
+        }
+        count = 0;
+        external++;
+        return false;
+    }
+
+    /**
+     * Returns true if some dim command has been sent and not notified back yet
+     */
+    synchronized boolean isInFlight() {
+        prune();
+        return count > 0;
+    }
+
+    /**
+     * Forget all in-flight commands
+     */
+    synchronized void clear() {
+        count = 0;
+    }
+
+    /**
+     * Returns a human readable summary of tracking statistics
+     */
+    synchronized String getStatistics() {
+        return String.format("inFlight=%d echoes=%d external=%d expired=%d", count, echoes, external, expired);
+    }
+
+    private void prune() {
+        long now = System.nanoTime();
+        while (count > 0 && now - sentNanos[head] > ECHO_TIMEOUT_NANOS) {
+            head = (head + 1) % CAPACITY;
+            count--;
+            expired++;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openwebnet.message.OpenMessage;
+import org.openwebnet.message.OpenMessageFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetDimmerRamps} fades BUS dimmers of a bridge to a target level in a given time. A ramp is a
+ * sequence of DIMMER_LEVEL_100 frames (1% resolution) that follows a {@link Curve}. All ramps are served by a single
+ * timer: at each tick the next level of each ramp is computed, and frames are sent together in a single batch. Frames
+ * are rate limited: each ramp sends at most one frame every {@link #MIN_STEP_MS}, and all ramps together at most
+ * the configured frame rate (see {@link #setFrameRate(int)}), so that concurrent fades do not flood the BUS; the last
+ * frame of a ramp, with the target level, is always sent.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetDimmerRamps {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetDimmerRamps.class);
+
+    /**
+     * Ramp curves: level progress as a function of time progress (both 0-1)
+     */
+    enum Curve {
+        LINEAR,
+        EASE_IN,
+        EASE_OUT,
+        EASE_IN_OUT;
+
+        double apply(double x) {
+            switch (this) {
+                case EASE_IN:
+                    return x * x;
+                case EASE_OUT:
+                    return 1 - (1 - x) * (1 - x);
+                case EASE_IN_OUT:
+                    return x * x * (3 - 2 * x);
+                default:
+                    return x;
+            }
+        }
+    }
+
+    static final long TICK_MS = 100;
+    static final long MIN_STEP_MS = 200; // min time between frames of a ramp
+
+    private final OpenWebNetTimerService timers;
+    private final Function<List<OpenMessage>, CompletableFuture<List<OpenMessage>>> batchSender;
+
+    // all fields guarded by this
+    private final List<Ramp> ramps = new ArrayList<>();
+    private OpenWebNetTimerService.@Nullable Timeout tickSchedule;
+    private int frameRate = 10; // (frames/s) for all ramps
+    private double tokens;
+    private int next; // first ramp served at next tick, ramps are served round robin
+
+    // statistics, guarded by this
+    private long started;
+    private long completed;
+    private long cancelled;
+    private long frames;
+    private long throttled;
+
+    /**
+     * @param timers      timer service running the ramps tick
+     * @param batchSender sends the frames of a tick as a batch
+     */
+    OpenWebNetDimmerRamps(OpenWebNetTimerService timers,
+            Function<List<OpenMessage>, CompletableFuture<List<OpenMessage>>> batchSender) {
+        this.timers = timers;
+        this.batchSender = batchSender;
+    }
+
+    /**
+     * @param frameRate max number of ramp frames sent per second, for all ramps
+     */
+    synchronized void setFrameRate(int frameRate) {
+        this.frameRate = Math.max(1, frameRate);
+    }
+
+    /**
+     * Start a ramp, replacing the one in progress for the same dimmer
+     *
+     * @param handler    the dimmer handler, notified of each level sent
+     * @param where      the dimmer WHERE
+     * @param from       start level (%)
+     * @param to         target level (%)
+     * @param durationMs ramp duration
+     * @param curve      ramp curve
+     */
+    synchronized void start(OpenWebNetLightingHandler handler, String where, int from, int to, long durationMs,
+            Curve curve) {
+        removeRamp(handler);
+        ramps.add(new Ramp(handler, where, from, to, System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(durationMs),
+                curve));
+        started++;
+        logger.debug("==OWN:DimmerRamps== ramp WHERE={} {}% -> {}% in {}ms ({})", where, from, to, durationMs, curve);
+        if (tickSchedule == null) {
+            tokens = 1;
+            tickSchedule = timers.schedule(this::tick, 0);
+        }
+    }
+
+    /**
+     * Cancel the ramp in progress for a dimmer, if any: the dimmer stays at the last level sent
+     */
+    synchronized void cancel(OpenWebNetLightingHandler handler) {
+        if (removeRamp(handler)) {
+            cancelled++;
+        }
+    }
+
+    /**
+     * Cancel all ramps
+     */
+    synchronized void shutdown() {
+        ramps.clear();
+        OpenWebNetTimerService.Timeout t = tickSchedule;
+        if (t != null) {
+            t.cancel();
+            tickSchedule = null;
+        }
+    }
+
+    /**
+     * Returns a human readable summary of ramps statistics
+     */
+    synchronized String getStatistics() {
+        return String.format("active=%d started=%d completed=%d cancelled=%d frames=%d throttled=%d frameRate=%d/s",
+                ramps.size(), started, completed, cancelled, frames, throttled, frameRate);
+    }
+
+    private boolean removeRamp(OpenWebNetLightingHandler handler) {
+        for (int i = 0; i < ramps.size(); i++) {
+            if (ramps.get(i).handler == handler) {
+                ramps.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void tick() {
+        List<Ramp> stepped = new ArrayList<>();
+        List<OpenMessage> msgs = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            double perTick = frameRate * TICK_MS / 1000.0;
+            tokens = Math.min(Math.max(1, perTick), tokens + perTick);
+            int n = ramps.size();
+            int start = n == 0 ? 0 : next % n;
+            List<Ramp> done = new ArrayList<>();
+            for (int k = 0; k < n; k++) {
+                Ramp ramp = ramps.get((start + k) % n);
+                boolean last = now - ramp.startNanos >= ramp.durationNanos;
+                int percent = last ? ramp.to : ramp.percentAt(now);
+                if (percent == ramp.sent) {
+                    if (last) {
+                        done.add(ramp);
+                    }
+                    continue;
+                }
+                if (ramp.stepSent && now - ramp.sentNanos < TimeUnit.MILLISECONDS.toNanos(MIN_STEP_MS)) {
+                    continue;
+                }
+                if (tokens < 1) {
+                    throttled++;
+                    next = (start + k) % n; // served first at next tick
+                    break;
+                }
+                tokens--;
+                ramp.sent = percent;
+                ramp.stepSent = true;
+                ramp.sentNanos = now;
+                stepped.add(ramp);
+                msgs.add(OpenMessageFactory.parse("*#1*" + ramp.where + "*#1*" + (100 + percent) + "*0##"));
+                if (last) {
+                    done.add(ramp);
+                }
+            }
+            ramps.removeAll(done);
+            completed += done.size();
+            frames += msgs.size();
+            tickSchedule = ramps.isEmpty() ? null : timers.schedule(this::tick, TICK_MS);
+        }
+        if (msgs.isEmpty()) {
+            return;
+        }
+        // handlers are notified outside the lock: they call start()/cancel() from their own threads
+        for (Ramp ramp : stepped) {
+            try {
+                ramp.handler.rampStep(ramp.sent);
+            } catch (RuntimeException e) {
+                logger.debug("==OWN:DimmerRamps== could not update thing {}: {}", ramp.handler.getThing().getUID(),
+                        e.getMessage());
+            }
+        }
+        batchSender.apply(msgs).whenComplete((responses, e) -> {
+            if (e != null) {
+                logger.warn("==OWN:DimmerRamps== could not send {} ramp frames: {}", msgs.size(), e.getMessage());
+            }
+        });
+    }
+
+    private static class Ramp {
+        private final OpenWebNetLightingHandler handler;
+        private final String where;
+        private final int from;
+        private final int to;
+        private final long startNanos;
+        private final long durationNanos;
+        private final Curve curve;
+        private int sent; // last level sent (%)
+        private boolean stepSent; // System.nanoTime() may be negative: sentNanos is set only if true
+        private long sentNanos;
+
+        Ramp(OpenWebNetLightingHandler handler, String where, int from, int to, long startNanos, long durationNanos,
+                Curve curve) {
+            this.handler = handler;
+            this.where = where;
+            this.from = from;
+            this.to = to;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.curve = curve;
+            this.sent = from;
+        }
+
+        int percentAt(long now) {
+            double x = durationNanos <= 0 ? 1 : Math.min(1, (double) (now - startNanos) / durationNanos);
+            return (int) Math.round(from + (to - from) * curve.apply(x));
+        }
+    }
+}
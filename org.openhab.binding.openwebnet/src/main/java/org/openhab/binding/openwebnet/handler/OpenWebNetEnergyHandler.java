@@ -15,8 +15,6 @@ package org.openhab.binding.openwebnet.handler;
 import static org.openhab.binding.openwebnet.OpenWebNetBindingConstants.CHANNEL_POWER;
 
 import java.util.Set;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.smarthome.core.library.types.DecimalType;
@@ -44,8 +42,6 @@ public class OpenWebNetEnergyHandler extends OpenWebNetThingHandler {
 
     public final static Set<ThingTypeUID> SUPPORTED_THING_TYPES = OpenWebNetBindingConstants.ENERGY_SUPPORTED_THING_TYPES;
 
-    private ScheduledFuture<?> notificationSchedule = null;
-
     public OpenWebNetEnergyHandler(@NonNull Thing thing) {
         super(thing);
         logger.debug("==OWN:EnergyHandler== constructor");
@@ -55,47 +51,51 @@ public class OpenWebNetEnergyHandler extends OpenWebNetThingHandler {
     public void initialize() {
         super.initialize();
         logger.debug("==OWN:EnergyHandler== initialize() thing={}", thing.getUID());
-        int period = 10;
-        notificationSchedule = scheduler.scheduleAtFixedRate(() -> {
-            logger.debug(
-                    "==OWN:EnergyHandler== For WHERE={} subscribing to active power changes notification for the next {}min",
-                    deviceWhere, period);
-            try {
-                bridgeHandler.gateway.send(EnergyManagement.setActivePowerNotificationsTime(deviceWhere, period));
-            } catch (Exception e) {
-                logger.warn(
-                        "==OWN:EnergyHandler== For WHERE={} could not subscribe to active power changes notifications. Exception={}",
-                        deviceWhere, e.getMessage());
-            }
-        }, 0, period - 1, TimeUnit.MINUTES);
+        subscribeIfLinked();
+    }
+
+    /**
+     * Subscribe to active power notifications if the power channel is linked. Also called by the bridge when it is
+     * initialized again (e.g. after a configuration change), as this thing is not.
+     */
+    void subscribeIfLinked() {
+        if (bridgeHandler != null && deviceWhere != null && isLinked(CHANNEL_POWER)) {
+            bridgeHandler.getEnergySubscriptions().subscribe(deviceWhere);
+        }
+    }
 
+    @Override
+    public void channelLinked(ChannelUID channelUID) {
+        // active power notifications are needed only while the power channel is linked
+        if (CHANNEL_POWER.equals(channelUID.getId()) && bridgeHandler != null && deviceWhere != null) {
+            bridgeHandler.getEnergySubscriptions().subscribe(deviceWhere);
+        }
+        super.channelLinked(channelUID);
+    }
+
+    @Override
+    public void channelUnlinked(ChannelUID channelUID) {
+        if (CHANNEL_POWER.equals(channelUID.getId()) && bridgeHandler != null && deviceWhere != null
+                && !isLinked(CHANNEL_POWER)) {
+            bridgeHandler.getEnergySubscriptions().unsubscribe(deviceWhere);
+        }
+        super.channelUnlinked(channelUID);
     }
 
     @Override
     public void dispose() {
-        if (notificationSchedule != null) {
-            notificationSchedule.cancel(false);
+        if (bridgeHandler != null && deviceWhere != null) {
+            // switch off active power notifications
+            bridgeHandler.getEnergySubscriptions().unsubscribe(deviceWhere);
         }
         super.dispose();
-        scheduler.schedule(() -> {
-            try {
-                // switch off active power updates
-                bridgeHandler.gateway.send(EnergyManagement.setActivePowerNotificationsTime(deviceWhere, 0));
-            } catch (Exception e) {
-                logger.debug(
-                        "==OWN:EnergyHandler== For WHERE={} could not UN-subscribe from active power changes notifications. Exception={}",
-                        deviceWhere, e.getMessage());
-                //e.printStackTrace();
-            }
-        }, 1, TimeUnit.MINUTES);
-
     }
 
     @Override
     protected void requestChannelState(ChannelUID channel) {
         logger.debug("==OWN:EnergyHandler== requestChannelState() thingUID={} channel={}", thing.getUID(),
                 channel.getId());
-        bridgeHandler.gateway.send(EnergyManagement.requestActivePower(deviceWhere));
+        bridgeHandler.requestStateAsync(EnergyManagement.requestActivePower(deviceWhere));
     }
 
     @Override
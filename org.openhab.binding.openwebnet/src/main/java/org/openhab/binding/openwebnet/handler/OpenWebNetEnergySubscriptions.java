@@ -0,0 +1,220 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openwebnet.message.EnergyManagement;
+import org.openwebnet.message.OpenMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetEnergySubscriptions} manages the active power notifications of energy central units. Units
+ * send power changes only for a limited time after a subscription: subscriptions are renewed only for units whose
+ * power channel is linked to an item. Renewals are spread in time with a random jitter, and renewals due at the same
+ * time are sent together in a single batch by one periodic check for all units of the bridge, run by the bridge
+ * {@link OpenWebNetTimerService}.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetEnergySubscriptions {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetEnergySubscriptions.class);
+
+    static final int PERIOD_MIN = 10; // (min) active power notifications time for each subscription
+    private static final long RENEW_MS = TimeUnit.MINUTES.toMillis(PERIOD_MIN - 1);
+    private static final long JITTER_MS = TimeUnit.SECONDS.toMillis(60); // renewals are anticipated by up to this
+    private static final long CHECK_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final long SUBSCRIBE_DELAY_MS = 1000; // collect subscriptions of units linked together
+    private static final long RETRY_MS = TimeUnit.SECONDS.toMillis(60);
+
+    private final OpenWebNetTimerService timers;
+    private final Function<List<OpenMessage>, CompletableFuture<List<OpenMessage>>> batchSender;
+    private final Function<OpenMessage, CompletableFuture<OpenMessage>> sender;
+    private final Random random = new Random();
+
+    // WHERE -> next renewal (System.nanoTime(), not affected by wall clock changes), guarded by this
+    private final Map<String, Long> nextRenewal = new HashMap<>();
+    private OpenWebNetTimerService.@Nullable Timeout checkSchedule; // guarded by this
+    private long checkGeneration; // current periodic check, guarded by this
+    private OpenWebNetTimerService.@Nullable Timeout subscribeSchedule; // guarded by this
+
+    // statistics
+    private final AtomicLong renewals = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong unsubscribed = new AtomicLong();
+
+    /**
+     * @param timers      timer service used to renew subscriptions
+     * @param batchSender sends a batch of subscriptions to the gateway
+     * @param sender      sends a single un-subscription to the gateway
+     */
+    OpenWebNetEnergySubscriptions(OpenWebNetTimerService timers,
+            Function<List<OpenMessage>, CompletableFuture<List<OpenMessage>>> batchSender,
+            Function<OpenMessage, CompletableFuture<OpenMessage>> sender) {
+        this.timers = timers;
+        this.batchSender = batchSender;
+        this.sender = sender;
+    }
+
+    /**
+     * Subscribe to active power notifications of a unit, and keep renewing the subscription until
+     * {@link #unsubscribe(String)} is called
+     *
+     * @param where the energy central unit WHERE
+     */
+    synchronized void subscribe(String where) {
+        if (nextRenewal.containsKey(where)) {
+            return;
+        }
+        nextRenewal.put(where, System.nanoTime());
+        logger.debug("==OWN:EnergySubscriptions== subscribing WHERE={}", where);
+        if (subscribeSchedule == null) {
+            subscribeSchedule = timers.schedule(this::check, SUBSCRIBE_DELAY_MS);
+        }
+        if (checkSchedule == null) {
+            long gen = ++checkGeneration;
+            checkSchedule = timers.schedule(() -> periodicCheck(gen), CHECK_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Stop renewing the subscription of a unit and switch off its active power notifications
+     *
+     * @param where the energy central unit WHERE
+     */
+    void unsubscribe(String where) {
+        synchronized (this) {
+            if (nextRenewal.remove(where) == null) {
+                return;
+            }
+            if (nextRenewal.isEmpty()) {
+                cancelSchedules();
+            }
+        }
+        logger.debug("==OWN:EnergySubscriptions== un-subscribing WHERE={}", where);
+        unsubscribed.incrementAndGet();
+        sender.apply(EnergyManagement.setActivePowerNotificationsTime(where, 0)).whenComplete((response, e) -> {
+            if (e != null) {
+                logger.debug("==OWN:EnergySubscriptions== could not un-subscribe WHERE={}: {}", where,
+                        e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Renew all subscriptions now, e.g. after the gateway (re)connected: the units may have lost them
+     */
+    synchronized void renewAll() {
+        if (nextRenewal.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (Map.Entry<String, Long> e : nextRenewal.entrySet()) {
+            e.setValue(now);
+        }
+        if (subscribeSchedule == null) {
+            subscribeSchedule = timers.schedule(this::check, SUBSCRIBE_DELAY_MS);
+        }
+    }
+
+    /**
+     * Stop renewing all subscriptions, without switching off notifications. Units are subscribed again with
+     * {@link #subscribe(String)} when the bridge is initialized again.
+     */
+    synchronized void shutdown() {
+        nextRenewal.clear();
+        cancelSchedules();
+    }
+
+    /**
+     * Returns a human readable summary of subscriptions statistics
+     */
+    synchronized String getStatistics() {
+        return String.format("units=%d renewals=%d batches=%d failures=%d unsubscribed=%d", nextRenewal.size(),
+                renewals.get(), batches.get(), failures.get(), unsubscribed.get());
+    }
+
+    private void cancelSchedules() {
+        OpenWebNetTimerService.Timeout s = checkSchedule;
+        if (s != null) {
+            s.cancel();
+            checkSchedule = null;
+        }
+        s = subscribeSchedule;
+        if (s != null) {
+            s.cancel();
+            subscribeSchedule = null;
+        }
+    }
+
+    private void periodicCheck(long gen) {
+        synchronized (this) {
+            if (gen != checkGeneration || checkSchedule == null) { // cancelled or restarted
+                return;
+            }
+            checkSchedule = timers.schedule(() -> periodicCheck(gen), CHECK_INTERVAL_MS);
+        }
+        check();
+    }
+
+    private void check() {
+        List<String> due = new ArrayList<>();
+        List<OpenMessage> msgs = new ArrayList<>();
+        synchronized (this) {
+            subscribeSchedule = null;
+            long now = System.nanoTime();
+            for (Map.Entry<String, Long> e : nextRenewal.entrySet()) {
+                if (e.getValue() - now <= 0) {
+                    due.add(e.getKey());
+                    msgs.add(EnergyManagement.setActivePowerNotificationsTime(e.getKey(), PERIOD_MIN));
+                    long renewMs = RENEW_MS - (long) (random.nextDouble() * JITTER_MS);
+                    e.setValue(now + TimeUnit.MILLISECONDS.toNanos(renewMs));
+                }
+            }
+        }
+        if (msgs.isEmpty()) {
+            return;
+        }
+        logger.debug("==OWN:EnergySubscriptions== renewing active power notifications for WHERE={}", due);
+        renewals.addAndGet(msgs.size());
+        batches.incrementAndGet();
+        batchSender.apply(msgs).whenComplete((responses, e) -> {
+            if (e != null) {
+                failures.incrementAndGet();
+                logger.warn(
+                        "==OWN:EnergySubscriptions== could not subscribe to active power notifications for WHERE={}: {}",
+                        due, e.getMessage());
+                synchronized (this) {
+                    long retry = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_MS);
+                    for (String where : due) {
+                        nextRenewal.computeIfPresent(where, (w, next) -> retry);
+                    }
+                }
+            }
+        });
+    }
+}
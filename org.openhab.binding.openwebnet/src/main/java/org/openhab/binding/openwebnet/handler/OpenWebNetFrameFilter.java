@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openwebnet.message.OpenMessage;
+import org.openwebnet.message.Who;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetFrameFilter} is a fast pre-filter working on the raw frame string (*WHO*...## or *#WHO*...##).
+ * It drops ACK/NACK, Gateway Management frames, WHOs not supported by the binding, frames not in the optional WHO/WHERE
+ * allowlist and frames for WHEREs with no registered device (or, for AREA/GROUP/GENERAL WHEREs, with no registered
+ * member device), before any further processing of the message.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetFrameFilter {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetFrameFilter.class);
+
+    // filter results
+    static final int ACCEPT = 0;
+    static final int DROP_ACK_NACK = 1;
+    static final int DROP_GATEWAY_MGMT = 2;
+    static final int DROP_UNSUPPORTED_WHO = 3;
+    static final int DROP_NOT_ALLOWED = 4;
+    static final int DROP_UNREGISTERED = 5;
+    static final int DROP_MALFORMED = 6;
+    private static final String[] RESULT_NAMES = { "accepted", "ackNack", "gatewayMgmt", "unsupportedWho",
+            "notAllowed", "unregistered", "malformed" };
+
+    private static final int MAX_WHO = 32;
+    private static final int GATEWAY_MGMT_WHO = Who.GATEWAY_MANAGEMENT.value();
+
+    // WHOs handled by the binding
+    private static final boolean[] SUPPORTED_WHO = new boolean[MAX_WHO];
+    static {
+        SUPPORTED_WHO[Who.LIGHTING.value()] = true;
+        SUPPORTED_WHO[Who.AUTOMATION.value()] = true;
+        SUPPORTED_WHO[Who.THERMOREGULATION.value()] = true;
+        SUPPORTED_WHO[Who.CEN_SCENARIO_SCHEDULER.value()] = true;
+        SUPPORTED_WHO[Who.ENERGY_MANAGEMENT.value()] = true;
+        SUPPORTED_WHO[Who.CEN_PLUS_SCENARIO_SCHEDULER.value()] = true;
+    }
+
+    private final OpenWebNetRoutingIndex routingIndex;
+    private final OpenWebNetTopology topology;
+    private final AtomicLongArray counters = new AtomicLongArray(RESULT_NAMES.length);
+
+    // optional allowlist: allowedWho[WHO] = all WHEREs allowed; allowedWheres[WHO] = sorted WHERE keys allowed
+    private boolean allowlistActive = false;
+    private final boolean[] allowedWho = new boolean[MAX_WHO];
+    private final long[][] allowedWheres = new long[MAX_WHO][];
+
+    OpenWebNetFrameFilter(OpenWebNetRoutingIndex routingIndex, OpenWebNetTopology topology) {
+        this.routingIndex = routingIndex;
+        this.topology = topology;
+    }
+
+    /**
+     * Set the allowlist from a comma separated list of WHO (all devices of that WHO) or WHO.WHERE entries.
+     * Example: <code>1,2.93,4.#1</code>. A null or empty list disables the allowlist.
+     *
+     * @param csv the allowlist config parameter
+     */
+    void setAllowlist(@Nullable String csv) {
+        Arrays.fill(allowedWho, false);
+        Arrays.fill(allowedWheres, null);
+        allowlistActive = false;
+        if (csv == null || csv.trim().isEmpty()) {
+            return;
+        }
+        for (String entry : csv.split(",")) {
+            String e = entry.trim();
+            if (e.isEmpty()) {
+                continue;
+            }
+            int dot = e.indexOf('.');
+            try {
+                int who = Integer.parseInt(dot < 0 ? e : e.substring(0, dot));
+                if (who < 0 || who >= MAX_WHO) {
+                    throw new NumberFormatException();
+                }
+                if (dot < 0) {
+                    allowedWho[who] = true;
+                } else {
+                    long key = OpenWebNetRoutingIndex.busWhereKey(e, dot + 1, e.length());
+                    if (key == OpenWebNetRoutingIndex.NO_KEY) {
+                        throw new NumberFormatException();
+                    }
+                    long[] keys = allowedWheres[who];
+                    keys = keys == null ? new long[1] : Arrays.copyOf(keys, keys.length + 1);
+                    keys[keys.length - 1] = key;
+                    Arrays.sort(keys);
+                    allowedWheres[who] = keys;
+                }
+                allowlistActive = true;
+            } catch (NumberFormatException nfe) {
+                logger.warn("==OWN:FrameFilter== invalid allowlist entry '{}', ignoring it", e);
+            }
+        }
+    }
+
+    /**
+     * Check a raw frame received from a BUS gateway
+     *
+     * @param frame            the raw frame
+     * @param discoveryActive  if true, frames for unregistered WHEREs are accepted
+     * @return {@link #ACCEPT} or one of the DROP_* reasons
+     */
+    int check(String frame, boolean discoveryActive) {
+        int result = evaluate(frame, discoveryActive);
+        counters.incrementAndGet(result);
+        return result;
+    }
+
+    private int evaluate(String frame, boolean discoveryActive) {
+        if (OpenMessage.ACK.equals(frame) || OpenMessage.NACK.equals(frame)) {
+            return DROP_ACK_NACK;
+        }
+        int len = frame.length();
+        if (len < 6 || frame.charAt(0) != '*' || !frame.endsWith(OpenMessage.FRAME_END)) {
+            return DROP_MALFORMED;
+        }
+        boolean isDim = frame.charAt(1) == '#';
+        int i = isDim ? 2 : 1;
+        int who = 0;
+        int whoStart = i;
+        for (; i < len; i++) {
+            char c = frame.charAt(i);
+            if (c == '*' || c == '#') {
+                break;
+            }
+            if (c < '0' || c > '9') {
+                return DROP_MALFORMED;
+            }
+            who = who * 10 + (c - '0');
+            if (who > 9999) {
+                return DROP_MALFORMED;
+            }
+        }
+        if (i == whoStart || i >= len) {
+            return DROP_MALFORMED;
+        }
+        if (who == GATEWAY_MGMT_WHO) {
+            return DROP_GATEWAY_MGMT;
+        }
+        if (who >= MAX_WHO || !SUPPORTED_WHO[who]) {
+            return DROP_UNSUPPORTED_WHO;
+        }
+        // find WHERE field: *#WHO*WHERE*... or *WHO*WHAT*WHERE##
+        int whereStart = frame.indexOf('*', i) + 1;
+        if (!isDim && whereStart > 0) {
+            whereStart = frame.indexOf('*', whereStart) + 1;
+        }
+        if (whereStart <= 0) {
+            return DROP_MALFORMED;
+        }
+        int whereEnd = frame.indexOf('*', whereStart);
+        if (whereEnd < 0 || whereEnd > len - 2) {
+            whereEnd = len - 2;
+        }
+        long key = OpenWebNetRoutingIndex.busWhereKey(frame, whereStart, whereEnd);
+        if (allowlistActive && !allowedWho[who]) {
+            long[] keys = allowedWheres[who];
+            if (keys == null || key == OpenWebNetRoutingIndex.NO_KEY || Arrays.binarySearch(keys, key) < 0) {
+                return DROP_NOT_ALLOWED;
+            }
+        }
+        if (!discoveryActive && routingIndex.lookup(who, key) == null
+                && !topology.hasMembers(who, frame, whereStart, whereEnd)) {
+            return DROP_UNREGISTERED;
+        }
+        return ACCEPT;
+    }
+
+    /**
+     * Returns a human readable summary of filter counters
+     */
+    String getStatistics() {
+        StringBuilder sb = new StringBuilder();
+        for (int r = 0; r < RESULT_NAMES.length; r++) {
+            if (r > 0) {
+                sb.append(' ');
+            }
+            sb.append(RESULT_NAMES[r]).append('=').append(counters.get(r));
+        }
+        return sb.toString();
+    }
+}
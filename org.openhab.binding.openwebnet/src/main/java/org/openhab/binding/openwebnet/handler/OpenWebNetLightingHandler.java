@@ -15,14 +15,18 @@ package org.openhab.binding.openwebnet.handler;
 import static org.openhab.binding.openwebnet.OpenWebNetBindingConstants.*;
 
 import java.math.BigDecimal;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.smarthome.core.library.types.DecimalType;
 import org.eclipse.smarthome.core.library.types.IncreaseDecreaseType;
 import org.eclipse.smarthome.core.library.types.OnOffType;
 import org.eclipse.smarthome.core.library.types.PercentType;
+import org.eclipse.smarthome.core.library.types.StringType;
+import org.eclipse.smarthome.core.thing.Channel;
 import org.eclipse.smarthome.core.thing.ChannelUID;
 import org.eclipse.smarthome.core.thing.Thing;
 import org.eclipse.smarthome.core.thing.ThingStatus;
@@ -51,14 +55,18 @@ public class OpenWebNetLightingHandler extends OpenWebNetThingHandler {
 
     protected Lighting.Type lightingType = Lighting.Type.ZIGBEE;
 
-    private double lastBrightnessChangeSentTS = 0; // timestamp when last brightness change was sent to the device
-    private static final int BRIGHTNESS_CHANGE_DELAY = 1500; // ms delay to wait before sending a brightness status
-                                                             // request
+    // dim commands sent and not notified back yet by the BUS
+    private final OpenWebNetDimTracker dimTracker = new OpenWebNetDimTracker();
+    private int rampPercent = -1; // latest level (%) sent by a ramp
+    private volatile int switchWhat = -1; // latest switch state of BUS lights: 1=ON, 0=OFF, -1=unknown
+    private static final double DEFAULT_RAMP_DURATION = 2; // sec
 
     private boolean brightnessLevelRequested = false; // was the brightness level requested ?
     private int latestBrightnessWhat = -1; // latest brightness WHAT value (-1 = unknown)
     private int latestBrightnessWhatBeforeOff = -1; // latest brightness WHAT value before device was set to off
     private final static int SCHEDULE_DELAY = 500; // ms
+    // scheduled UNDEF state updates, per channel
+    private final Map<String, OpenWebNetTimerService.Timeout> undefSchedules = new ConcurrentHashMap<>();
     protected int addrtype; // address type
 
     public OpenWebNetLightingHandler(@NonNull Thing thing) {
@@ -100,17 +108,33 @@ public class OpenWebNetLightingHandler extends OpenWebNetThingHandler {
             updateStatus(ThingStatus.ONLINE);
             updateState(channel, UnDefType.UNDEF);
         } else {
-            bridgeHandler.gateway.send(Lighting.requestStatus(toWhere(channel), lightingType));
+            bridgeHandler.requestStateAsync(Lighting.requestStatus(toWhere(channel), lightingType));
         }
     }
 
+    @Override
+    protected void refreshDevice() {
+        // one status request for each unit of the device (ZigBee devices can have more units)
+        Set<String> wheres = new HashSet<>();
+        for (Channel channel : thing.getChannels()) {
+            if (wheres.add(toWhere(channel.getUID()))) {
+                requestChannelState(channel.getUID());
+            }
+        }
+        scheduleStateRequestTimeout();
+    }
+
     @Override
     protected void handleChannelCommand(ChannelUID channel, Command command) {
         switch (channel.getId()) {
             case CHANNEL_BRIGHTNESS:
             case "dimmerLevel":
+                bridgeHandler.getDimmerRamps().cancel(this);
                 handleBrightnessCommand(command);
                 break;
+            case CHANNEL_RAMP:
+                handleRampCommand(command);
+                break;
             case CHANNEL_SWITCH:
             case CHANNEL_SWITCH_01:
             case CHANNEL_SWITCH_02:
@@ -136,9 +160,9 @@ public class OpenWebNetLightingHandler extends OpenWebNetThingHandler {
     private void handleSwitchCommand(ChannelUID channel, Command command) {
         if (command instanceof OnOffType) {
             if (OnOffType.ON.equals(command)) {
-                bridgeHandler.gateway.send(Lighting.requestTurnOn(toWhere(channel), lightingType));
+                sendSwitchCommand(Lighting.requestTurnOn(toWhere(channel), lightingType));
             } else if (OnOffType.OFF.equals(command)) {
-                bridgeHandler.gateway.send(Lighting.requestTurnOff(toWhere(channel), lightingType));
+                sendSwitchCommand(Lighting.requestTurnOff(toWhere(channel), lightingType));
             }
             if (addrtype != PARAMETER_TYPE_POINT_TO_POINT) {
                 ScheduleUnDef(channel);
@@ -148,6 +172,18 @@ public class OpenWebNetLightingHandler extends OpenWebNetThingHandler {
         }
     }
 
+    /**
+     * Sends a switch command: point-to-point commands for several lights of the same area/group may be merged by the
+     * bridge into a single area/group command
+     */
+    private void sendSwitchCommand(Lighting msg) {
+        if (addrtype == PARAMETER_TYPE_POINT_TO_POINT) {
+            bridgeHandler.sendOptimized(this, msg);
+        } else {
+            bridgeHandler.sendAsync(msg);
+        }
+    }
+
     /**
      * Handles Lighting brightness command (ON, OFF, xx%, INCREASE, DECREASE)
      *
@@ -180,13 +216,69 @@ public class OpenWebNetLightingHandler extends OpenWebNetThingHandler {
         }
     }
 
+    /**
+     * Handles Lighting ramp command: <code>TARGET%,DURATION_SEC[,CURVE]</code> (e.g. <code>80,5,EASE_IN_OUT</code>)
+     *
+     * @param command
+     */
+    private void handleRampCommand(Command command) {
+        if (!(command instanceof StringType) || !bridgeHandler.isBusGateway()) {
+            logger.warn("==OWN:LightingHandler== Cannot handle ramp command {} for thing {}", command,
+                    getThing().getUID());
+            return;
+        }
+        String[] parts = command.toString().split(",");
+        try {
+            int target = Integer.parseInt(parts[0].trim());
+            double duration = parts.length > 1 ? Double.parseDouble(parts[1].trim()) : DEFAULT_RAMP_DURATION;
+            OpenWebNetDimmerRamps.Curve curve = parts.length > 2
+                    ? OpenWebNetDimmerRamps.Curve.valueOf(parts[2].trim().toUpperCase())
+                    : OpenWebNetDimmerRamps.Curve.LINEAR;
+            if (target < 0 || target > 100 || duration < 0) {
+                throw new IllegalArgumentException();
+            }
+            int from;
+            synchronized (this) {
+                // start from the exact level of the previous ramp, if the dimmer has not been changed since
+                if (rampPercent >= 0 && Lighting.percentToWhat(rampPercent).value() == latestBrightnessWhat) {
+                    from = rampPercent;
+                } else {
+                    from = latestBrightnessWhat > 0 ? levelToPercent(latestBrightnessWhat) : 0;
+                }
+            }
+            bridgeHandler.getDimmerRamps().start(this, toWhere(BaseOpenMessage.UNIT_01), from, target,
+                    Math.round(duration * 1000), curve);
+        } catch (IllegalArgumentException e) {
+            logger.warn(
+                    "==OWN:LightingHandler== Wrong ramp command {} for thing {}: expected TARGET%,DURATION_SEC[,CURVE]",
+                    command, getThing().getUID());
+        }
+    }
+
+    /**
+     * A ramp is sending a new level to the dimmer (see {@link OpenWebNetDimmerRamps})
+     *
+     * @param percent the level (%) sent
+     */
+    synchronized void rampStep(int percent) {
+        int level = Lighting.percentToWhat(percent).value();
+        dimTracker.sent(level);
+        if (level == 0 && latestBrightnessWhat > 0) {
+            latestBrightnessWhatBeforeOff = latestBrightnessWhat;
+        }
+        latestBrightnessWhat = level;
+        rampPercent = percent;
+        updateState(CHANNEL_BRIGHTNESS, new PercentType(percent));
+        updateState("dimmerLevel", new DecimalType(level));
+    }
+
     /**
      * Helper method to dim light to a valid OWN value
      *
      * @param whatInt new WHAT (int value)
      * @param command original OH2 Command received
      */
-    private void dimLightTo(int whatInt, Command command) {
+    private synchronized void dimLightTo(int whatInt, Command command) {
         final String channel = CHANNEL_BRIGHTNESS;
         final String where = toWhere(BaseOpenMessage.UNIT_01);
         int newWhatInt = whatInt;
@@ -214,14 +306,14 @@ public class OpenWebNetLightingHandler extends OpenWebNetThingHandler {
                 if (newWhatInt == 0) {
                     latestBrightnessWhatBeforeOff = latestBrightnessWhat;
                 }
-                lastBrightnessChangeSentTS = System.currentTimeMillis();
-                bridgeHandler.gateway.send(Lighting.requestDimTo(where, newWhat, lightingType));
-                logger.debug("################### {}", lastBrightnessChangeSentTS);
+                dimTracker.sent(newWhat.value());
+                send(Lighting.requestDimTo(where, newWhat, lightingType));
+                // the level of the device is the level sent, that is also the level of its echo
                 if (!(command instanceof PercentType)) {
-                    updateState(channel, new PercentType(levelToPercent(newWhatInt)));
+                    updateState(channel, new PercentType(levelToPercent(newWhat.value())));
                 }
-                updateState("dimmerLevel", new DecimalType(newWhatInt));
-                latestBrightnessWhat = newWhatInt;
+                updateState("dimmerLevel", new DecimalType(newWhat.value()));
+                latestBrightnessWhat = newWhat.value();
             } else {
                 logger.debug("$ do nothing");
             }
@@ -272,8 +364,10 @@ public class OpenWebNetLightingHandler extends OpenWebNetThingHandler {
         }
         if (msg.isOn() || msg.isMovement()) {
             updateState(channelID, OnOffType.ON);
+            switchWhat = Lighting.WHAT.ON.value();
         } else if (msg.isOff() || msg.isEndMovement()) {
             updateState(channelID, OnOffType.OFF);
+            switchWhat = Lighting.WHAT.OFF.value();
         } else {
             logger.info(
                     "==OWN:LightingHandler== updateLightOnOffState() Ignoring unsupported WHAT for thing {}. Frame={}",
@@ -294,35 +388,50 @@ public class OpenWebNetLightingHandler extends OpenWebNetThingHandler {
         logger.debug("==OWN:LightingHandler== updateLightBrightnessState() msg={}", msg);
         logger.debug("$$$ START---updateLightBr latestBriWhat={} latestBriBeforeOff={} brightnessLevelRequested={}",
                 latestBrightnessWhat, latestBrightnessWhatBeforeOff, brightnessLevelRequested);
-        double now = System.currentTimeMillis();
-        double delta = now - lastBrightnessChangeSentTS;
-        logger.debug("$bri now={} delta={}", now, delta);
         if (msg.isOn() && !brightnessLevelRequested) {
-            if (delta >= BRIGHTNESS_CHANGE_DELAY) {
-                // we send a light brightness status request ONLY if last brightness change
-                // was sent >BRIGHTNESS_CHANGE_DELAY ago
-                logger.debug("$bri change sent >={}ms ago, sending requestStatus...", BRIGHTNESS_CHANGE_DELAY);
+            if (addrtype == PARAMETER_TYPE_POINT_TO_POINT && OpenWebNetTopology.isMultipleTarget(msg)
+                    && (latestBrightnessWhat > 0 || latestBrightnessWhatBeforeOff > 0)) {
+                // ON from an area/group/general command: the dimmer goes back to its latest level, no requestStatus.
+                // If no level is known, the level is requested below as for any other ON
+                if (latestBrightnessWhat <= 0 && latestBrightnessWhatBeforeOff > 0) {
+                    logger.debug("$bri ON from area/group/general, restoring level={}", latestBrightnessWhatBeforeOff);
+                    latestBrightnessWhat = latestBrightnessWhatBeforeOff;
+                    updateState(channel, new PercentType(levelToPercent(latestBrightnessWhat)));
+                    updateState("dimmerLevel", new DecimalType(latestBrightnessWhat));
+                } else {
+                    logger.debug("$bri ON from area/group/general, latest level={}", latestBrightnessWhat);
+                }
+            } else if (isRestoringState()) {
+                logger.debug("$bri ON restored from snapshot, level will be confirmed by the state resync");
+            } else if (dimTracker.isInFlight()) {
+                logger.debug("$bri ON while our dim commands are in flight, level={} confirmed by their echo",
+                        latestBrightnessWhat);
+            } else if (latestBrightnessWhat > 0) {
+                logger.debug("$bri ON, light already ON at level={}, NO requestStatus needed", latestBrightnessWhat);
+            } else if (latestBrightnessWhatBeforeOff > 0) {
+                // the dimmer goes back to its latest level before OFF
+                logger.debug("$bri ON, restoring level={}", latestBrightnessWhatBeforeOff);
+                latestBrightnessWhat = latestBrightnessWhatBeforeOff;
+                updateState(channel, new PercentType(levelToPercent(latestBrightnessWhat)));
+                updateState("dimmerLevel", new DecimalType(latestBrightnessWhat));
+            } else {
+                // we send a light brightness status request ONLY if the level is unknown
+                logger.debug("$bri ON with unknown level, sending requestStatus...");
                 brightnessLevelRequested = true;
                 Lighting li = Lighting.requestStatus(where, lightingType);
-                bridgeHandler.gateway.send(li);
-            } else {
-                logger.debug("$bri change sent {}<{}ms, NO requestStatus needed", delta, BRIGHTNESS_CHANGE_DELAY);
+                bridgeHandler.requestStateAsync(li);
             }
         } else {
             logger.debug("$bri update from network -> level should be present in WHAT part of the message");
             if (msg.getWhat() != null) { // cmd
                 int newLevel = msg.getWhat().value();
                 logger.debug("$bri current level={} ----> new level={}", latestBrightnessWhat, newLevel);
-                if (latestBrightnessWhat != newLevel) {
-                    if (delta >= BRIGHTNESS_CHANGE_DELAY) {
-                        logger.debug("$bri change sent >={}ms ago, updating state...", BRIGHTNESS_CHANGE_DELAY);
-                        updateState(channel, new PercentType(levelToPercent(newLevel)));
-                    } else if (msg.isOff()) {
-                        logger.debug("$bri change just sent, but OFF from network received, updating state...");
-                        updateState(channel, new PercentType(levelToPercent(newLevel)));
-                    } else {
-                        logger.debug("$bri change just sent, NO update needed.");
-                    }
+                if (dimTracker.isEcho(newLevel)) {
+                    // state was already updated when the command was sent
+                    logger.debug("$bri echo of our dim command, NO update needed. {}", dimTracker.getStatistics());
+                } else if (latestBrightnessWhat != newLevel) {
+                    logger.debug("$bri change from network, updating state...");
+                    updateState(channel, new PercentType(levelToPercent(newLevel)));
                     updateState("dimmerLevel", new DecimalType(newLevel));
                     if (msg.isOff()) {
                         latestBrightnessWhatBeforeOff = latestBrightnessWhat;
@@ -346,6 +455,11 @@ public class OpenWebNetLightingHandler extends OpenWebNetThingHandler {
                     int newLevel = Lighting.percentToWhat(newPercent).value();
                     logger.debug("$bri latest level={} ----> new percent={} ----> new level={}", latestBrightnessWhat,
                             newPercent, newLevel);
+                    if (dimTracker.isEcho(newLevel)) {
+                        logger.debug("$bri echo of our dim command, NO update needed. {}", dimTracker.getStatistics());
+                        brightnessLevelRequested = false;
+                        return;
+                    }
                     updateState(channel, new PercentType(newPercent));
                     updateState("dimmerLevel", new DecimalType(newLevel));
                     if (newPercent == 0) {
@@ -419,20 +533,41 @@ public class OpenWebNetLightingHandler extends OpenWebNetThingHandler {
         }
     }
 
+    /**
+     * Returns the state of this light for lighting scenes (see {@link OpenWebNetLightingScenes}) as the WHAT of the
+     * command that sets it (0=OFF, 1=ON, 2-10=dimmer level), or -1 if the state is not known or this is not a BUS
+     * point-to-point light
+     */
+    int getSceneWhat() {
+        if (bridgeHandler == null || !bridgeHandler.isBusGateway() || addrtype != PARAMETER_TYPE_POINT_TO_POINT) {
+            return -1;
+        }
+        if (THING_TYPE_BUS_DIMMER.equals(thing.getThingTypeUID())) {
+            int level = latestBrightnessWhat;
+            // dimming to 10% is not allowed in OWN
+            return level == Lighting.WHAT.ON.value() ? Lighting.WHAT.DIMMER_20.value() : level;
+        }
+        return switchWhat;
+    }
+
+    @Override
+    public void dispose() {
+        if (bridgeHandler != null) {
+            bridgeHandler.getDimmerRamps().cancel(this);
+        }
+        super.dispose();
+    }
+
     private void ScheduleUnDef(ChannelUID channel) {
-        // let's schedule a UNDEF
-        scheduler.schedule(() -> {
-            logger.debug("==OWN:LightingHandler== ScheduleReleased() # " + deviceWhere + " sending virtual UnDef...");
-            updateState(channel, UnDefType.UNDEF);
-        }, SCHEDULE_DELAY, TimeUnit.MILLISECONDS);
+        ScheduleUnDefStr(channel.getId());
     }
 
     private void ScheduleUnDefStr(String channel) {
-        // let's schedule a UNDEF
-        scheduler.schedule(() -> {
+        // let's schedule a UNDEF, replacing the one already scheduled for this channel
+        undefSchedules.compute(channel, (ch, previous) -> bridgeHandler.getTimers().reschedule(previous, () -> {
             logger.debug("==OWN:LightingHandler== ScheduleReleased() # " + deviceWhere + " sending virtual UnDef...");
             updateState(channel, UnDefType.UNDEF);
-        }, SCHEDULE_DELAY, TimeUnit.MILLISECONDS);
+        }, SCHEDULE_DELAY));
     }
 
 } // class
@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.openwebnet.message.BaseOpenMessage;
+import org.openwebnet.message.OpenMessage;
+import org.openwebnet.message.OpenMessageFactory;
+import org.openwebnet.message.Who;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetLightingScenes} captures the state of the BUS lights of a bridge as a named scene, and restores
+ * it later with the minimum number of frames. The state of each light is taken from the binding (see
+ * {@link OpenWebNetLightingHandler#getSceneWhat()}), without requests on the BUS.
+ * <p>
+ * On restore, lights already in the scene state are skipped, and the others get a point-to-point frame. When all the
+ * members of a group declared complete by the user (see {@link OpenWebNetTopology#isComplete(long)}) have the same
+ * state in the scene, a single GROUP frame is sent for them instead, largest groups first. Areas and general are never
+ * used: they may include BUS lights not configured in openHAB. All frames are sent as a single batch.
+ * Scenes are kept in memory until the bridge is disposed.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetLightingScenes {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetLightingScenes.class);
+
+    private static final int LIGHTING_WHO = Who.LIGHTING.value();
+
+    private final OpenWebNetTopology topology;
+    private final Supplier<Collection<OpenWebNetThingHandler>> devices;
+    private final Function<List<OpenMessage>, CompletableFuture<List<OpenMessage>>> batchSender;
+
+    private final Map<String, Map<String, Integer>> scenes = new HashMap<>(); // name -> (ownId -> WHAT), guarded
+
+    // statistics, guarded by this
+    private long snapshots;
+    private long restores;
+    private String lastRestore = "none";
+
+    /**
+     * @param topology    area/group/general membership of devices
+     * @param devices     devices registered to the bridge
+     * @param batchSender sends the frames of a restore as a batch
+     */
+    OpenWebNetLightingScenes(OpenWebNetTopology topology, Supplier<Collection<OpenWebNetThingHandler>> devices,
+            Function<List<OpenMessage>, CompletableFuture<List<OpenMessage>>> batchSender) {
+        this.topology = topology;
+        this.devices = devices;
+        this.batchSender = batchSender;
+    }
+
+    /**
+     * Capture the current state of all lights with a known state as a scene, replacing the scene with the same name
+     *
+     * @param name the scene name
+     * @return the number of lights in the scene
+     */
+    int snapshot(String name) {
+        Map<String, Integer> scene = new HashMap<>();
+        int unknown = 0;
+        for (OpenWebNetThingHandler device : devices.get()) {
+            if (device instanceof OpenWebNetLightingHandler) {
+                int what = ((OpenWebNetLightingHandler) device).getSceneWhat();
+                if (what >= 0) {
+                    scene.put(device.ownId, what);
+                } else {
+                    unknown++;
+                }
+            }
+        }
+        synchronized (this) {
+            scenes.put(name, scene);
+            snapshots++;
+        }
+        logger.info("==OWN:LightingScenes== scene '{}' captured: {} lights, {} with unknown state", name, scene.size(),
+                unknown);
+        return scene.size();
+    }
+
+    /**
+     * Restore a scene
+     *
+     * @param name the scene name
+     * @return the batch result, or a future completed exceptionally if the scene does not exist
+     */
+    CompletableFuture<List<OpenMessage>> restore(String name) {
+        long start = System.nanoTime();
+        Map<String, Integer> scene;
+        synchronized (this) {
+            scene = scenes.get(name);
+        }
+        if (scene == null) {
+            CompletableFuture<List<OpenMessage>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalArgumentException("unknown scene: " + name));
+            return failed;
+        }
+        // scene state of registered lights, and lights to change
+        Map<OpenWebNetThingHandler, Integer> targets = new IdentityHashMap<>();
+        List<OpenWebNetLightingHandler> toChange = new ArrayList<>();
+        int skipped = 0;
+        for (OpenWebNetThingHandler device : devices.get()) {
+            Integer what = scene.get(device.ownId);
+            if (what == null || !(device instanceof OpenWebNetLightingHandler)) {
+                continue;
+            }
+            targets.put(device, what);
+            if (((OpenWebNetLightingHandler) device).getSceneWhat() == what) {
+                skipped++;
+            } else {
+                toChange.add((OpenWebNetLightingHandler) device);
+            }
+        }
+        List<OpenMessage> msgs = new ArrayList<>();
+        Set<OpenWebNetThingHandler> covered = Collections.newSetFromMap(new IdentityHashMap<>());
+        int targetFrames = planTargetFrames(targets, toChange, covered, msgs);
+        for (OpenWebNetLightingHandler light : toChange) {
+            if (!covered.contains(light)) {
+                msgs.add(frame(light.deviceWhere, targets.get(light)));
+            }
+        }
+        int lights = targets.size();
+        int unchanged = skipped;
+        logger.debug("==OWN:LightingScenes== restoring scene '{}': {} lights, {} skipped, {} frames ({} groups)", name,
+                lights, skipped, msgs.size(), targetFrames);
+        if (msgs.isEmpty()) {
+            recordRestore(name, lights, skipped, 0, 0, start);
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        return batchSender.apply(msgs).whenComplete((responses, e) -> {
+            if (e != null) {
+                logger.warn("==OWN:LightingScenes== restore of scene '{}' failed: {}", name, e.getMessage());
+            } else {
+                recordRestore(name, lights, unchanged, msgs.size(), targetFrames, start);
+            }
+        });
+    }
+
+    /**
+     * Returns a human readable summary of scenes statistics
+     */
+    synchronized String getStatistics() {
+        return String.format("scenes=%d snapshots=%d restores=%d last=[%s]", scenes.size(), snapshots, restores,
+                lastRestore);
+    }
+
+    /**
+     * Add a frame for each complete group whose members all have the same scene state, largest groups first
+     *
+     * @return the number of target frames added
+     */
+    private int planTargetFrames(Map<OpenWebNetThingHandler, Integer> targets,
+            List<OpenWebNetLightingHandler> toChange, Set<OpenWebNetThingHandler> covered, List<OpenMessage> msgs) {
+        List<Long> candidates = topology.candidateTargets(toChange,
+                key -> OpenWebNetTopology.targetWho(key) == LIGHTING_WHO && topology.isComplete(key));
+        Set<OpenWebNetThingHandler> changing = Collections.newSetFromMap(new IdentityHashMap<>());
+        changing.addAll(toChange);
+        int frames = 0;
+        for (long key : candidates) {
+            OpenWebNetThingHandler[] members = topology.members(key);
+            if (members == null || members.length < 2) {
+                continue;
+            }
+            Integer what = targets.get(members[0]);
+            int toCover = 0;
+            for (OpenWebNetThingHandler member : members) {
+                if (what == null || !what.equals(targets.get(member)) || covered.contains(member)) {
+                    what = null;
+                    break;
+                }
+                if (changing.contains(member)) {
+                    toCover++;
+                }
+            }
+            if (what == null || toCover < 2) { // a single light to change is restored point-to-point
+                continue;
+            }
+            boolean group = OpenWebNetTopology.targetType(key) == BaseOpenMessage.Type.GROUP;
+            msgs.add(frame((group ? "#" : "") + OpenWebNetTopology.targetWhere(key), what));
+            frames++;
+            Collections.addAll(covered, members);
+        }
+        return frames;
+    }
+
+    private static OpenMessage frame(String where, int what) {
+        return OpenMessageFactory.parse("*" + LIGHTING_WHO + "*" + what + "*" + where + "##");
+    }
+
+    private synchronized void recordRestore(String name, int lights, int skipped, int frames, int targetFrames,
+            long startNanos) {
+        restores++;
+        lastRestore = String.format("scene=%s lights=%d skipped=%d frames=%d groupFrames=%d time=%dms", name,
+                lights, skipped, frames, targetFrames, (System.nanoTime() - startNanos) / 1000000);
+        logger.info("==OWN:LightingScenes== restored {}", lastRestore);
+    }
+}
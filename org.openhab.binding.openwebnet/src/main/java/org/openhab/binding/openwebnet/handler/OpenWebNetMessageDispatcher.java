@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.smarthome.core.common.NamedThreadFactory;
+import org.openwebnet.message.BaseOpenMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetMessageDispatcher} moves received frames off the gateway reader thread.
+ * Frames are handed to a fixed set of single-thread lanes (stripes) selected by the device ownId: frames for the same
+ * device are always handled by the same lane and stay in order, while different devices are handled in parallel.
+ * Lane threads are started by {@link #start()} and stopped by {@link #shutdown()}, at each initialization and disposal
+ * of the bridge: the dispatcher can be started again after a shutdown (e.g. after a bridge configuration change).
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetMessageDispatcher {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetMessageDispatcher.class);
+
+    private final Lane[] lanes;
+
+    /**
+     * @param name    id used to name lane threads (see {@link NamedThreadFactory})
+     * @param stripes number of lanes (threads)
+     */
+    OpenWebNetMessageDispatcher(String name, int stripes) {
+        lanes = new Lane[Math.max(1, stripes)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(name + "-" + i);
+        }
+    }
+
+    /**
+     * Start the lanes threads, replacing lanes stopped by a previous {@link #shutdown()}
+     */
+    void start() {
+        for (Lane lane : lanes) {
+            lane.start();
+        }
+    }
+
+    /**
+     * Queue a message to be handled by a device handler, in the lane assigned to the device
+     *
+     * @param handler the device handler
+     * @param msg     the message to handle
+     */
+    void dispatch(OpenWebNetThingHandler handler, BaseOpenMessage msg) {
+        String ownId = handler.ownId;
+        int h = ownId == null ? System.identityHashCode(handler) : ownId.hashCode();
+        Lane lane = lanes[(h & Integer.MAX_VALUE) % lanes.length];
+        lane.submit(handler, msg);
+    }
+
+    /**
+     * Stop all lanes. Queued frames are discarded.
+     */
+    void shutdown() {
+        for (Lane lane : lanes) {
+            lane.stop();
+        }
+    }
+
+    /**
+     * Returns current queue depth (sum of all lanes)
+     */
+    int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.queueSize();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns a human readable summary of dispatch statistics: queue depth (current/max) and handler time
+     * (count/avg/max)
+     */
+    String getStatistics() {
+        int depth = 0, maxDepth = 0;
+        long count = 0, totalNanos = 0, maxNanos = 0;
+        for (Lane lane : lanes) {
+            depth += lane.queueSize();
+            maxDepth = Math.max(maxDepth, lane.maxDepth.get());
+            count += lane.handled.get();
+            totalNanos += lane.handlerNanos.get();
+            maxNanos = Math.max(maxNanos, lane.maxHandlerNanos.get());
+        }
+        long avgMicros = count == 0 ? 0 : totalNanos / count / 1000;
+        return String.format("lanes=%d queue=%d maxQueue=%d handled=%d avgHandler=%dus maxHandler=%dus", lanes.length,
+                depth, maxDepth, count, avgMicros, maxNanos / 1000);
+    }
+
+    private class Lane {
+        private final NamedThreadFactory threadFactory;
+        private volatile @Nullable ThreadPoolExecutor executor; // null until started
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicLong handled = new AtomicLong();
+        private final AtomicLong handlerNanos = new AtomicLong();
+        private final AtomicLong maxHandlerNanos = new AtomicLong();
+
+        Lane(String id) {
+            this.threadFactory = new NamedThreadFactory(id, true);
+        }
+
+        synchronized void start() {
+            ThreadPoolExecutor e = executor;
+            if (e != null && !e.isShutdown()) {
+                return;
+            }
+            executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                    threadFactory);
+        }
+
+        synchronized void stop() {
+            ThreadPoolExecutor e = executor;
+            if (e != null) {
+                e.shutdownNow();
+            }
+        }
+
+        int queueSize() {
+            ThreadPoolExecutor e = executor;
+            return e == null ? 0 : e.getQueue().size();
+        }
+
+        void submit(OpenWebNetThingHandler handler, BaseOpenMessage msg) {
+            ThreadPoolExecutor e = executor;
+            try {
+                if (e == null) {
+                    throw new RejectedExecutionException("lane not started");
+                }
+                e.execute(() -> handle(handler, msg));
+            } catch (RejectedExecutionException ex) {
+                logger.warn("==OWN:Dispatcher== dispatcher not running, discarding frame {} for thing {}", msg,
+                        handler.getThing().getUID());
+                return;
+            }
+            int depth = e.getQueue().size();
+            if (depth > maxDepth.get()) {
+                maxDepth.set(depth);
+            }
+        }
+
+        private void handle(OpenWebNetThingHandler handler, BaseOpenMessage msg) {
+            long start = System.nanoTime();
+            try {
+                handler.handleMessage(msg);
+            } catch (RuntimeException e) {
+                logger.warn("==OWN:Dispatcher== exception while handling frame {} for thing {}: {}", msg,
+                        handler.getThing().getUID(), e.getMessage(), e);
+            }
+            long elapsed = System.nanoTime() - start;
+            handled.incrementAndGet();
+            handlerNanos.addAndGet(elapsed);
+            if (elapsed > maxHandlerNanos.get()) {
+                maxHandlerNanos.set(elapsed);
+            }
+        }
+    }
+}
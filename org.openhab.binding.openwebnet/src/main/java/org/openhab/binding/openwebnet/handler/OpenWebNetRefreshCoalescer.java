@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openwebnet.message.BaseOpenMessage;
+import org.openwebnet.message.OpenMessage;
+import org.openwebnet.message.OpenMessageFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetRefreshCoalescer} collects device status requests received within a short window (e.g. when
+ * openHAB refreshes a whole page or group of items). Duplicate requests (same frame, e.g. for more channels of the same
+ * device) are sent once. When most of the members of an area, group or general (see {@link OpenWebNetTopology}) are
+ * requested in the same window, a single AREA/GROUP/GENERAL status request is sent instead of one request per device:
+ * each device answers with its own state frame.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetRefreshCoalescer {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetRefreshCoalescer.class);
+
+    private final OpenWebNetTimerService timers;
+    private final OpenWebNetRoutingIndex routingIndex;
+    private final OpenWebNetTopology topology;
+    private final Function<OpenMessage, CompletableFuture<OpenMessage>> sender;
+
+    private final Map<String, PendingRequest> pending = new LinkedHashMap<>(); // frame -> request, guarded by this
+    private OpenWebNetTimerService.@Nullable Timeout flushSchedule; // guarded by this
+    private volatile int window;
+
+    // statistics
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong pointFrames = new AtomicLong();
+    private final AtomicLong areaFrames = new AtomicLong();
+    private final AtomicLong groupFrames = new AtomicLong();
+    private final AtomicLong generalFrames = new AtomicLong();
+
+    /**
+     * @param timers       timer service used to flush collected requests
+     * @param routingIndex registered devices by WHO/WHERE
+     * @param topology     area/group/general membership of devices
+     * @param sender       sends a status request to the gateway
+     */
+    OpenWebNetRefreshCoalescer(OpenWebNetTimerService timers, OpenWebNetRoutingIndex routingIndex,
+            OpenWebNetTopology topology, Function<OpenMessage, CompletableFuture<OpenMessage>> sender) {
+        this.timers = timers;
+        this.routingIndex = routingIndex;
+        this.topology = topology;
+        this.sender = sender;
+    }
+
+    /**
+     * @param window collection window (ms). 0 disables the coalescer
+     */
+    void setWindow(int window) {
+        this.window = window;
+    }
+
+    /**
+     * Send a status request, possibly merged with other requests
+     *
+     * @param msg the status request
+     * @return a future completed with the gateway response (ACK/NACK) to the frame that was sent for this request
+     */
+    CompletableFuture<OpenMessage> submit(OpenMessage msg) {
+        requests.incrementAndGet();
+        if (window <= 0) {
+            pointFrames.incrementAndGet();
+            return sender.apply(msg);
+        }
+        synchronized (this) {
+            PendingRequest request = pending.get(msg.getValue());
+            if (request != null) {
+                duplicates.incrementAndGet();
+                return request.future;
+            }
+            request = new PendingRequest(msg);
+            pending.put(msg.getValue(), request);
+            if (flushSchedule == null) {
+                flushSchedule = timers.schedule(this::flush, window);
+            }
+            return request.future;
+        }
+    }
+
+    /**
+     * Returns a human readable summary of coalescer statistics
+     */
+    String getStatistics() {
+        return String.format(
+                "requests=%d duplicates=%d pointFrames=%d areaFrames=%d groupFrames=%d generalFrames=%d window=%dms",
+                requests.get(), duplicates.get(), pointFrames.get(), areaFrames.get(), groupFrames.get(),
+                generalFrames.get(), window);
+    }
+
+    private void flush() {
+        List<PendingRequest> requestsToSend;
+        synchronized (this) {
+            requestsToSend = new ArrayList<>(pending.values());
+            pending.clear();
+            flushSchedule = null;
+        }
+        // requests for devices belonging to areas/groups
+        Map<OpenWebNetThingHandler, PendingRequest> requested = new IdentityHashMap<>();
+        for (PendingRequest request : requestsToSend) {
+            OpenWebNetThingHandler handler = deviceOf(request.msg);
+            if (handler != null && topology.targetKeys(handler).length > 0) {
+                requested.put(handler, request);
+            }
+        }
+        Set<PendingRequest> covered = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (requested.size() >= 2) {
+            for (long key : topology.candidateTargets(requested.keySet(), key -> true)) {
+                OpenWebNetThingHandler[] members = topology.members(key);
+                if (members == null) {
+                    continue;
+                }
+                List<PendingRequest> memberRequests = new ArrayList<>();
+                for (OpenWebNetThingHandler member : members) {
+                    PendingRequest request = requested.get(member);
+                    if (request != null && !covered.contains(request)) {
+                        memberRequests.add(request);
+                    }
+                }
+                // at least 2 requests, and at least half of the members requested: replies from members that were
+                // not requested just refresh their state
+                if (memberRequests.size() < 2 || memberRequests.size() * 2 < members.length) {
+                    continue;
+                }
+                OpenMessage targetMsg = targetStatusRequest(key);
+                logger.debug("==OWN:RefreshCoalescer== sending {} for {} status requests", targetMsg,
+                        memberRequests.size());
+                countTarget(key);
+                CompletableFuture<OpenMessage> targetFuture = sender.apply(targetMsg);
+                for (PendingRequest request : memberRequests) {
+                    covered.add(request);
+                    OpenWebNetCommandSender.chain(targetFuture, request.future);
+                }
+            }
+        }
+        for (PendingRequest request : requestsToSend) {
+            if (!covered.contains(request)) {
+                pointFrames.incrementAndGet();
+                OpenWebNetCommandSender.chain(sender.apply(request.msg), request.future);
+            }
+        }
+    }
+
+    private @Nullable OpenWebNetThingHandler deviceOf(OpenMessage msg) {
+        if (!(msg instanceof BaseOpenMessage)) {
+            return null;
+        }
+        try {
+            return routingIndex.lookup((BaseOpenMessage) msg);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void countTarget(long key) {
+        switch (OpenWebNetTopology.targetType(key)) {
+            case AREA:
+                areaFrames.incrementAndGet();
+                break;
+            case GROUP:
+                groupFrames.incrementAndGet();
+                break;
+            default:
+                generalFrames.incrementAndGet();
+        }
+    }
+
+    /**
+     * Builds the AREA/GROUP/GENERAL status request for a target
+     */
+    private static OpenMessage targetStatusRequest(long key) {
+        boolean group = OpenWebNetTopology.targetType(key) == BaseOpenMessage.Type.GROUP;
+        return OpenMessageFactory.parse("*#" + OpenWebNetTopology.targetWho(key) + "*" + (group ? "#" : "")
+                + OpenWebNetTopology.targetWhere(key) + "##");
+    }
+
+    private static class PendingRequest {
+        private final OpenMessage msg;
+        private final CompletableFuture<OpenMessage> future = new CompletableFuture<>();
+
+        PendingRequest(OpenMessage msg) {
+            this.msg = msg;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openwebnet.message.BaseOpenMessage;
+
+/**
+ * The {@link OpenWebNetRoutingIndex} maps received BUS frames to the registered {@link OpenWebNetThingHandler} without
+ * building the ownId string for each frame.
+ * Devices are stored in one open-addressing table per WHO, keyed on the normalized WHERE encoded as a long (see
+ * {@link #whereKey(CharSequence, int, int)}).
+ * Tables are immutable and replaced on each (rare) register/unregister, so lookups from the gateway reader thread are
+ * lock-free.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetRoutingIndex {
+
+    public static final long NO_KEY = -1;
+
+    private static final int MAX_WHO = 32; // all WHOs handled by the binding are < 32
+    private static final int MAX_WHERE_CHARS = 17; // 11^18 still fits in a positive long
+    private static final int HASH_CHAR = 10; // '#' is encoded as digit 10 (base 11)
+
+    private volatile @Nullable Table[] tables = new Table[MAX_WHO];
+
+    /**
+     * Add a device to the index
+     *
+     * @param ownId   device ownId (WHO.WHERE)
+     * @param handler the device handler
+     * @return true if ownId could be indexed (numeric WHO and valid WHERE)
+     */
+    synchronized boolean put(String ownId, OpenWebNetThingHandler handler) {
+        int dot = ownId.indexOf('.');
+        int who = parseWho(ownId, dot);
+        long key = dot < 0 ? NO_KEY : whereKey(ownId, dot + 1, ownId.length());
+        if (who < 0 || key == NO_KEY) {
+            return false;
+        }
+        @Nullable
+        Table[] newTables = tables.clone();
+        Table current = newTables[who];
+        newTables[who] = (current == null ? Table.EMPTY : current).with(key, handler);
+        tables = newTables;
+        return true;
+    }
+
+    /**
+     * Remove a device from the index
+     *
+     * @param ownId device ownId (WHO.WHERE)
+     */
+    synchronized void remove(String ownId) {
+        int dot = ownId.indexOf('.');
+        int who = parseWho(ownId, dot);
+        long key = dot < 0 ? NO_KEY : whereKey(ownId, dot + 1, ownId.length());
+        if (who < 0 || key == NO_KEY) {
+            return;
+        }
+        @Nullable
+        Table[] newTables = tables.clone();
+        Table current = newTables[who];
+        if (current != null) {
+            newTables[who] = current.without(key);
+            tables = newTables;
+        }
+    }
+
+    synchronized void clear() {
+        tables = new Table[MAX_WHO];
+    }
+
+    /**
+     * Find the handler for a BUS message. WHERE is normalized the same way as
+     * {@link OpenWebNetBridgeHandler#normalizeWhere(String)} does for BUS gateways, but without allocating.
+     *
+     * @param msg the received message
+     * @return the registered handler or null
+     */
+    @Nullable
+    OpenWebNetThingHandler lookup(BaseOpenMessage msg) {
+        int who = msg.getWho().value();
+        return lookup(who, busWhereKey(msg.getWhere()));
+    }
+
+    @Nullable
+    OpenWebNetThingHandler lookup(int who, long whereKey) {
+        if (who < 0 || who >= MAX_WHO || whereKey == NO_KEY) {
+            return null;
+        }
+        Table t = tables[who];
+        return t == null ? null : t.get(whereKey);
+    }
+
+    /**
+     * Returns the key of the normalized WHERE of a BUS message, or {@link #NO_KEY}
+     */
+    static long busWhereKey(@Nullable String where) {
+        if (where == null) {
+            return NO_KEY;
+        }
+        return busWhereKey(where, 0, where.length());
+    }
+
+    /**
+     * Returns the key of the normalized WHERE found in chars [from, to) of a frame, or {@link #NO_KEY}
+     */
+    static long busWhereKey(String frame, int from, int to) {
+        int hash = indexOf(frame, '#', from, to);
+        if (hash < 0 || isLocalBus(frame, from, to)) { // no hash or local bus: APL#4#bus
+            return whereKey(frame, from, to);
+        } else if (hash == from) { // thermo zone via central unit: #Z --> Z
+            return whereKey(frame, from + 1, to);
+        } else { // thermo zone and actuator: Z#N --> Z
+            return whereKey(frame, from, hash);
+        }
+    }
+
+    private static int indexOf(String s, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** true if "#4#" is found in [from, to) after the first char */
+    private static boolean isLocalBus(String s, int from, int to) {
+        for (int i = from + 1; i + 2 < to; i++) {
+            if (s.charAt(i) == '#' && s.charAt(i + 1) == '4' && s.charAt(i + 2) == '#') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encodes WHERE chars [from, to) as a base-11 number ('#'=10) with a leading 1 so that leading zeros are kept
+     * ("01" != "1").
+     *
+     * @return the key, or {@link #NO_KEY} if the WHERE is empty, too long or contains unexpected chars
+     */
+    static long whereKey(CharSequence where, int from, int to) {
+        int len = to - from;
+        if (len <= 0 || len > MAX_WHERE_CHARS) {
+            return NO_KEY;
+        }
+        long key = 1;
+        for (int i = from; i < to; i++) {
+            char c = where.charAt(i);
+            int d;
+            if (c >= '0' && c <= '9') {
+                d = c - '0';
+            } else if (c == '#') {
+                d = HASH_CHAR;
+            } else {
+                return NO_KEY;
+            }
+            key = key * 11 + d;
+        }
+        return key;
+    }
+
+    private static int parseWho(String ownId, int dot) {
+        if (dot <= 0) {
+            return -1;
+        }
+        int who = 0;
+        for (int i = 0; i < dot; i++) {
+            char c = ownId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1; // ZigBee (Z) or generic (G) prefix
+            }
+            who = who * 10 + (c - '0');
+            if (who >= MAX_WHO) {
+                return -1;
+            }
+        }
+        return who;
+    }
+
+    /**
+     * Immutable open-addressing (linear probing) long -> handler table
+     */
+    private static final class Table {
+
+        static final Table EMPTY = new Table(new long[4], new OpenWebNetThingHandler[4], 0);
+
+        private final long[] keys;
+        private final @Nullable OpenWebNetThingHandler[] values;
+        private final int size;
+
+        private Table(long[] keys, @Nullable OpenWebNetThingHandler[] values, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.size = size;
+        }
+
+        @Nullable
+        OpenWebNetThingHandler get(long key) {
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (true) {
+                OpenWebNetThingHandler v = values[i];
+                if (v == null || keys[i] == key) {
+                    return v;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        Table with(long key, OpenWebNetThingHandler handler) {
+            return copy(size + 1, key, handler);
+        }
+
+        Table without(long key) {
+            return copy(size, key, null);
+        }
+
+        /** Copies all entries except changedKey, then adds changedKey->handler if handler is not null */
+        private Table copy(int expected, long changedKey, @Nullable OpenWebNetThingHandler handler) {
+            int cap = 4;
+            while (cap < expected * 2) {
+                cap <<= 1;
+            }
+            long[] newKeys = new long[cap];
+            @Nullable
+            OpenWebNetThingHandler[] newValues = new OpenWebNetThingHandler[cap];
+            int n = 0;
+            for (int i = 0; i < keys.length; i++) {
+                OpenWebNetThingHandler v = values[i];
+                if (v != null && keys[i] != changedKey) {
+                    insert(newKeys, newValues, keys[i], v);
+                    n++;
+                }
+            }
+            if (handler != null) {
+                insert(newKeys, newValues, changedKey, handler);
+                n++;
+            }
+            return new Table(newKeys, newValues, n);
+        }
+
+        private static void insert(long[] keys, @Nullable OpenWebNetThingHandler[] values, long key,
+                OpenWebNetThingHandler handler) {
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = handler;
+        }
+
+        private static int mix(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
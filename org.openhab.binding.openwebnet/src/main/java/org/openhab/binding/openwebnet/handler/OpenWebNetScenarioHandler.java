@@ -14,13 +14,9 @@ package org.openhab.binding.openwebnet.handler;
 
 import static org.openhab.binding.openwebnet.OpenWebNetBindingConstants.*;
 
-import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.smarthome.core.library.types.OnOffType;
@@ -32,6 +28,7 @@ import org.eclipse.smarthome.core.thing.ThingStatus;
 import org.eclipse.smarthome.core.thing.ThingTypeUID;
 import org.eclipse.smarthome.core.thing.binding.builder.ChannelBuilder;
 import org.eclipse.smarthome.core.thing.binding.builder.ThingBuilder;
+import org.eclipse.smarthome.core.thing.type.ChannelKind;
 import org.eclipse.smarthome.core.thing.type.ChannelTypeUID;
 import org.eclipse.smarthome.core.types.Command;
 import org.eclipse.smarthome.core.types.UnDefType;
@@ -75,14 +72,33 @@ public class OpenWebNetScenarioHandler extends OpenWebNetThingHandler {
 
     }
 
+    // channel states, indexed by OpenWebNetCENButtons.STATE_*
+    private final static StringType[] BUTTON_STATES = { new StringType(PressureState.PRESSED.toString()),
+            new StringType(PressureState.RELEASED.toString()), new StringType(PressureState.PRESSED_EXT.toString()),
+            new StringType(PressureState.RELEASED_EXT.toString()) };
+    // trigger events names, indexed by OpenWebNetCENButtons.EVENT_*
+    private final static String[] EVENT_NAMES = { "SINGLE", "DOUBLE", "TRIPLE", "HOLD_START", "HOLD_END" };
+    // trigger events of each button (N:SINGLE, ...), HOLD_END has the hold duration appended
+    private final static String[][] BUTTON_EVENTS = new String[OpenWebNetCENButtons.BUTTONS][EVENT_NAMES.length];
+    static {
+        for (int b = 0; b < OpenWebNetCENButtons.BUTTONS; b++) {
+            for (int e = 0; e < EVENT_NAMES.length; e++) {
+                BUTTON_EVENTS[b][e] = b + ":" + EVENT_NAMES[e];
+            }
+        }
+    }
+
     private boolean isDryContactIR = false;
     private boolean isCENPlus = false;
 
     private final static int SHORT_PRESSURE_DELAY = 300; // ms
     private final static int EXT_PRESS_INTERVAL = 500; // ms
 
-    // ConcurrentHashMap of schedules associated to channels (buttons)
-    private Map<Channel, ScheduledFuture<?>> channelsSchedules = new ConcurrentHashMap<>();
+    // pressure state machine of the buttons, null for Dry Contact/IR devices
+    private OpenWebNetCENButtons buttons;
+    // channels of the buttons, indexed by button number, null if the button channel has not been added yet
+    private final ChannelUID[] buttonChannels = new ChannelUID[OpenWebNetCENButtons.BUTTONS];
+    private ChannelUID buttonEventChannel;
 
     public final static Set<ThingTypeUID> SUPPORTED_THING_TYPES = OpenWebNetBindingConstants.SCENARIO_SUPPORTED_THING_TYPES;
 
@@ -101,25 +117,61 @@ public class OpenWebNetScenarioHandler extends OpenWebNetThingHandler {
     public void initialize() {
         super.initialize();
         logger.debug("==OWN:ScenarioHandler== initialize() thing={}", thing.getUID());
+        if (isDryContactIR) {
+            return;
+        }
+        ThingBuilder thingBuilder = editThing();
+        boolean changed = false;
+        buttonEventChannel = new ChannelUID(getThing().getUID(), CHANNEL_SCENARIO_BUTTON_EVENT);
+        if (thing.getChannel(CHANNEL_SCENARIO_BUTTON_EVENT) == null) { // thing created before the channel existed
+            thingBuilder.withChannel(ChannelBuilder.create(buttonEventChannel, null)
+                    .withType(new ChannelTypeUID(BINDING_ID, CHANNEL_TYPE_SCENARIO_BUTTON_EVENT))
+                    .withKind(ChannelKind.TRIGGER).withLabel("Button Event").build());
+            changed = true;
+        }
         Object buttonsConfig = getConfig().get(CONFIG_PROPERTY_SCENARIO_BUTTONS);
         if (buttonsConfig != null) {
-            Set<Integer> buttons = csvStringToSetInt((String) buttonsConfig);
-            if (!buttons.isEmpty()) {
-                ThingBuilder thingBuilder = editThing();
+            Set<Integer> configButtons = csvStringToSetInt((String) buttonsConfig);
+            if (!configButtons.isEmpty()) {
                 Channel ch;
-                for (Integer i : buttons) {
+                for (Integer i : configButtons) {
                     ch = thing.getChannel(CHANNEL_SCENARIO_BUTTON + i);
                     if (ch == null) {
                         thingBuilder.withChannel(buttonToChannel(i));
+                        changed = true;
                         logger.debug("==OWN:ScenarioHandler== added channel {} to thing: {}", i, getThing().getUID());
                     }
                 }
-                updateThing(thingBuilder.build());
             } else {
                 logger.warn("==OWN:ScenarioHandler== invalid config parameter buttons='{}' for thing {}", buttonsConfig,
                         thing.getUID());
             }
         }
+        if (changed) {
+            updateThing(thingBuilder.build());
+        }
+        for (int b = 0; b < OpenWebNetCENButtons.BUTTONS; b++) {
+            Channel ch = thing.getChannel(CHANNEL_SCENARIO_BUTTON + b);
+            buttonChannels[b] = ch == null ? null : ch.getUID();
+        }
+        if (bridgeHandler != null) {
+            buttons = new OpenWebNetCENButtons(bridgeHandler.getCENPressTimer(), new ButtonsListener());
+        }
+    }
+
+    @Override
+    public void dispose() {
+        OpenWebNetCENButtons b = buttons;
+        if (b != null && bridgeHandler != null) {
+            bridgeHandler.getCENPressTimer().unwatch(b);
+        }
+        super.dispose();
+    }
+
+    @Override
+    protected boolean publishesChangesOnly() {
+        // buttons states are pressure events: publish all of them
+        return isDryContactIR;
     }
 
     @Override
@@ -127,7 +179,7 @@ public class OpenWebNetScenarioHandler extends OpenWebNetThingHandler {
         logger.debug("==OWN:ScenarioHandler== requestChannelState() thingUID={} channel={}", thing.getUID(),
                 channel.getId());
         if (isDryContactIR) {
-            bridgeHandler.gateway.send(CENPlusScenario.requestStatus(deviceWhere));
+            bridgeHandler.requestStateAsync(CENPlusScenario.requestStatus(deviceWhere));
         } else { // is not possible to request channel state for CEN/CEN+ buttons
             updateStatus(ThingStatus.ONLINE);
             updateState(channel, UnDefType.UNDEF);
@@ -168,15 +220,14 @@ public class OpenWebNetScenarioHandler extends OpenWebNetThingHandler {
             switch (prState) {
                 case PRESSED:
                     if (isCENPlus) {
-                        bridgeHandler.gateway.send(CENPlusScenario.virtualShortPressure(deviceWhere, buttonNumber));
+                        bridgeHandler.sendAsync(CENPlusScenario.virtualShortPressure(deviceWhere, buttonNumber));
                     } else {
-                        bridgeHandler.gateway.send(CENScenario.virtualStartPressure(deviceWhere, buttonNumber));
-                        scheduler.schedule(() -> { // let's schedule a CEN virtual release OWN message
+                        bridgeHandler.sendAsync(CENScenario.virtualStartPressure(deviceWhere, buttonNumber));
+                        bridgeHandler.getTimers().schedule(() -> { // let's schedule a CEN virtual release OWN message
                             logger.debug(
                                     "==OWN:ScenarioHandler== # " + deviceWhere + " sending CEN virtual release...");
-                            bridgeHandler.gateway
-                                    .send(CENScenario.virtualReleaseShortPressure(deviceWhere, buttonNumber));
-                        }, SHORT_PRESSURE_DELAY, TimeUnit.MILLISECONDS);
+                            bridgeHandler.sendAsync(CENScenario.virtualReleaseShortPressure(deviceWhere, buttonNumber));
+                        }, SHORT_PRESSURE_DELAY);
                     }
                     break;
                 case RELEASED:
@@ -185,24 +236,24 @@ public class OpenWebNetScenarioHandler extends OpenWebNetThingHandler {
                 case PRESSED_EXT:
                     // TODO send more EXT PRESSURE messages every 500ms until RELEASE_EXT command
                     if (isCENPlus) {
-                        bridgeHandler.gateway
-                                .send(CENPlusScenario.virtualStartExtendedPressure(deviceWhere, buttonNumber));
+                        bridgeHandler.sendAsync(
+                                CENPlusScenario.virtualStartExtendedPressure(deviceWhere, buttonNumber));
                     } else {
-                        bridgeHandler.gateway.send(CENScenario.virtualStartPressure(deviceWhere, buttonNumber));
-                        scheduler.schedule(() -> { // let's schedule a CEN virtual ext pressure OWN message
+                        bridgeHandler.sendAsync(CENScenario.virtualStartPressure(deviceWhere, buttonNumber));
+                        // let's schedule a CEN virtual ext pressure OWN message
+                        bridgeHandler.getTimers().schedule(() -> {
                             logger.debug("==OWN:ScenarioHandler== # " + deviceWhere
                                     + " sending CEN virtual ext pressure...");
-                            bridgeHandler.gateway.send(CENScenario.virtualExtendedPressure(deviceWhere, buttonNumber));
-                        }, EXT_PRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                            bridgeHandler.sendAsync(CENScenario.virtualExtendedPressure(deviceWhere, buttonNumber));
+                        }, EXT_PRESS_INTERVAL);
                     }
                     break;
                 case RELEASED_EXT:
                     if (isCENPlus) {
-                        bridgeHandler.gateway
-                                .send(CENPlusScenario.virtualReleaseExtendedPressure(deviceWhere, buttonNumber));
+                        bridgeHandler.sendAsync(
+                                CENPlusScenario.virtualReleaseExtendedPressure(deviceWhere, buttonNumber));
                     } else {
-                        bridgeHandler.gateway
-                                .send(CENScenario.virtualReleaseExtendedPressure(deviceWhere, buttonNumber));
+                        bridgeHandler.sendAsync(CENScenario.virtualReleaseExtendedPressure(deviceWhere, buttonNumber));
                     }
                     break;
             }
@@ -264,29 +315,23 @@ public class OpenWebNetScenarioHandler extends OpenWebNetThingHandler {
                     cenMsg);
             return;
         }
-        Channel ch = thing.getChannel(CHANNEL_SCENARIO_BUTTON + buttonNumber);
-        if (ch == null) { // we have found a new button for this device, let's add a new channel for the button
+        // channels are cached by button number: no lookup by channel id for each message
+        if (buttonChannels[buttonNumber] == null) { // new button for this device, let's add a new channel for it
+            Channel ch = buttonToChannel(buttonNumber);
             ThingBuilder thingBuilder = editThing();
-            ch = buttonToChannel(buttonNumber);
             thingBuilder.withChannel(ch);
             updateThing(thingBuilder.build());
+            buttonChannels[buttonNumber] = ch.getUID();
             logger.info("==OWN:ScenarioHandler== added new channel {} to thing {}", ch.getUID(), getThing().getUID());
         }
-        final Channel channel = ch;
-        PressureState prState;
+        OpenWebNetCENButtons b = buttons;
+        if (b == null) {
+            return;
+        }
         if (cenMsg instanceof CENScenario) {
-            prState = cenPressureToPressureState((CENScenario) cenMsg, channel);
+            cenPressure((CENScenario) cenMsg, buttonNumber, b);
         } else {
-            prState = cenPlusPressureToPressureState((CENPlusScenario) cenMsg);
-        }
-        if (prState == PressureState.PRESSED) {
-            scheduler.schedule(() -> { // let's schedule state -> RELEASED
-                logger.debug("==OWN:ScenarioHandler== # " + deviceWhere + " updating state to 'RELEASED'...");
-                updateState(channel.getUID(), new StringType(PressureState.RELEASED.toString()));
-            }, SHORT_PRESSURE_DELAY, TimeUnit.MILLISECONDS);
-        }
-        if (prState != null) {
-            updateState(ch.getUID(), new StringType(prState.toString()));
+            cenPlusPressure((CENPlusScenario) cenMsg, buttonNumber, b);
         }
     }
 
@@ -299,12 +344,12 @@ public class OpenWebNetScenarioHandler extends OpenWebNetThingHandler {
      *      received
      *    OWN Message     | PRESSURE_TYPE          | channel state
      *  ---------------------------------------------------------------------------------------
-     *   *15*N*WHERE##    | PRESSURE               | schedule after (EXT_PRESS_INTERVAL + 10) a PRESSED-->RELEASED in case scenario is activated from Touchscreens (no new message will be received)
-     *   *15*N#1*WHERE##  | RELEASE_SHORT_PRESSURE | PRESSED, after shortPressureDelay: RELEASED (cancel schedule)
+     *   *15*N*WHERE##    | PRESSURE               | nothing; PRESSED if no other message within (EXT_PRESS_INTERVAL + 10), in case scenario is activated from Touchscreens
+     *   *15*N#1*WHERE##  | RELEASE_SHORT_PRESSURE | PRESSED, at the end of the click window: RELEASED
      *   *15*N#2*WHERE##  | RELEASE_EXT_PRESSURE   | RELEASED_EXT
-     *   *15*N#3*WHERE##  | EXT_PRESSURE           | PRESSED_EXT (cancel schedule)
+     *   *15*N#3*WHERE##  | EXT_PRESSURE           | PRESSED_EXT
      *   --------------------------------------------------------------------------------------
-     *   *25*21#N*WHERE## | SHORT_PRESSURE         | PRESSED, after shortPressureDelay: RELEASED
+     *   *25*21#N*WHERE## | SHORT_PRESSURE         | PRESSED, at the end of the click window: RELEASED
      *   *25*22#N*WHERE## | START_EXT_PRESSURE     | PRESSED_EXT
      *   *25*23#N*WHERE## | EXT_PRESSURE           | PRESSED_EXT
      *   *25*24#N*WHERE## | RELEASE_EXT_PRESSURE   | RELEASED_EXT
@@ -312,71 +357,80 @@ public class OpenWebNetScenarioHandler extends OpenWebNetThingHandler {
      *  For example, channel sequences will be (for both CEN and CEN+ channels):
      *      short pressure: previous state (UNDEF/RELEASED/RELEASED_EXT) --> PRESSED --> RELEASED
      *      long pressure:  previous state (UNDEF/RELEASED/RELEASED_EXT) --> PRESSED_EXT (*repeated if keep pressed) ... --> RELEASED_EXT
+     *
+     *  Short pressures within the click window (OpenWebNetCENButtons.CLICK_WINDOW_MS) of each other are counted, and at
+     *  the end of the window the buttonEvent channel is triggered with N:SINGLE, N:DOUBLE or N:TRIPLE. Long pressures
+     *  trigger N:HOLD_START and, on release, N:HOLD_END:<hold duration ms>
      */
     // @formatter:on
 
-    private PressureState cenPressureToPressureState(CENScenario cMsg, Channel channel) {
-        ScheduledFuture<?> sch;
+    private void cenPressure(CENScenario cMsg, int button, OpenWebNetCENButtons b) {
         CENScenario.CEN_PRESSURE_TYPE pt = cMsg.getButtonPressure();
         if (pt == null) {
             logger.warn("==OWN:ScenarioHandler== invalid CENScenario.PRESSURE_TYPE. Frame: {}", cMsg);
-            return null;
+            return;
         }
         switch (pt) {
-            case PRESSURE: // schedule a PRESSED-->RELEASED in case scenario is activated from Touchscreens (no new
-                           // message will be received)
-                sch = scheduler.schedule(() -> {
-                    logger.debug("==OWN:ScenarioHandler== # " + deviceWhere
-                            + " no message after CEN.PRESSURE, updating state to 'PRESSED'...");
-                    updateState(channel.getUID(), new StringType(PressureState.PRESSED.toString()));
-                    scheduler.schedule(() -> {
-                        logger.debug("==OWN:ScenarioHandler== # " + deviceWhere
-                                + " no message after CEN.PRESSURE, updating state to 'RELEASED'...");
-                        updateState(channel.getUID(), new StringType(PressureState.RELEASED.toString()));
-                    }, SHORT_PRESSURE_DELAY, TimeUnit.MILLISECONDS);
-                }, EXT_PRESS_INTERVAL + 10, TimeUnit.MILLISECONDS);
-                channelsSchedules.put(channel, sch);
-                return null;
+            case PRESSURE:
+                b.pressed(button);
+                break;
             case RELEASE_SHORT_PRESSURE:
-                sch = channelsSchedules.get(channel);
-                if (sch != null) {
-                    sch.cancel(false);
-                    logger.debug("==OWN:ScenarioHandler== # " + deviceWhere + " schedule cancelled");
-                }
-                return PressureState.PRESSED;
+                b.clicked(button);
+                break;
             case EXT_PRESSURE:
-                sch = channelsSchedules.get(channel);
-                if (sch != null) {
-                    sch.cancel(false);
-                    logger.debug("==OWN:ScenarioHandler== # " + deviceWhere + " schedule cancelled");
-                }
-                return PressureState.PRESSED_EXT;
+                b.held(button);
+                break;
             case RELEASE_EXT_PRESSURE:
-                return PressureState.RELEASED_EXT;
+                b.releasedHold(button);
+                break;
             default:
                 logger.warn("==OWN:ScenarioHandler== unsupported CENScenario.PRESSURE_TYPE. Frame: {}", cMsg);
-                return null;
         }
     }
 
-    private PressureState cenPlusPressureToPressureState(CENPlusScenario cMsg) {
+    private void cenPlusPressure(CENPlusScenario cMsg, int button, OpenWebNetCENButtons b) {
         CENPlusScenario.CEN_PLUS_PRESSURE_TYPE pt = cMsg.getButtonPressure();
         if (pt == null) {
             logger.warn("==OWN:ScenarioHandler== invalid CENPlusScenario.PRESSURE_TYPE. Frame: {}", cMsg);
-            return null;
+            return;
         }
         switch (pt) {
             case SHORT_PRESSURE:
-                return PressureState.PRESSED;
+                b.clicked(button);
+                break;
             case START_EXT_PRESSURE:
-                return PressureState.PRESSED_EXT;
             case EXT_PRESSURE:
-                return PressureState.PRESSED_EXT;
+                b.held(button);
+                break;
             case RELEASE_EXT_PRESSURE:
-                return PressureState.RELEASED_EXT;
+                b.releasedHold(button);
+                break;
             default:
                 logger.warn("==OWN:ScenarioHandler== unsupported CENPlusScenario.PRESSURE_TYPE. Frame: {}", cMsg);
-                return null;
+        }
+    }
+
+    /**
+     * Publishes states and events of the buttons state machine
+     */
+    private class ButtonsListener implements OpenWebNetCENButtons.Listener {
+
+        @Override
+        public void buttonState(int button, int state) {
+            ChannelUID channel = buttonChannels[button];
+            if (channel != null) {
+                updateState(channel, BUTTON_STATES[state]);
+            }
+        }
+
+        @Override
+        public void buttonEvent(int button, int event, long holdMs) {
+            String e = BUTTON_EVENTS[button][event];
+            if (event == OpenWebNetCENButtons.EVENT_HOLD_END) {
+                e = e + ":" + holdMs;
+            }
+            logger.debug("==OWN:ScenarioHandler== # {} button event {}", deviceWhere, e);
+            triggerChannel(buttonEventChannel, e);
         }
     }
 
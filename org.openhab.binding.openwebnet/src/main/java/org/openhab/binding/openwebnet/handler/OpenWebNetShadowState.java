@@ -0,0 +1,301 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.smarthome.core.library.types.DecimalType;
+import org.eclipse.smarthome.core.library.types.OnOffType;
+import org.eclipse.smarthome.core.library.types.PercentType;
+import org.eclipse.smarthome.core.types.State;
+
+/**
+ * The {@link OpenWebNetShadowState} keeps the last state published for each channel of the devices registered to a
+ * bridge, so that handlers publish to the openHAB event bus only states that actually changed (e.g. a light answering
+ * ON to every status request is published once).
+ * <p>
+ * Each registered device gets a slot (see {@link #allocate(String, String[])}) with up to {@link #STRIDE} channels, in
+ * the order of the thing channels. OnOff, Percent and Decimal states are stored encoded in primitive per-slot arrays
+ * (a kind and a <code>long</code> value for each channel), other states as objects. Each slot has its own lock, so
+ * that the dispatcher lanes updating different devices never wait for each other; the bridge lock is only taken to
+ * allocate and release slots. The last published state of a channel is forgotten when it is refreshed (see
+ * {@link #invalidate(int, String)}), so that newly linked items always get the state.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetShadowState {
+
+    static final int NO_SLOT = -1;
+    static final int STRIDE = 16; // max channels per device: other channels are always published
+
+    private static final int INITIAL_SLOTS = 64;
+
+    // kinds of the stored states
+    private static final byte NONE = 0; // not published yet, or invalidated
+    private static final byte ONOFF = 1;
+    private static final byte PERCENT = 2;
+    private static final byte DECIMAL = 3;
+    private static final byte OBJECT = 4;
+
+    private static final int MAX_EXACT_DIGITS = 15; // decimals with up to 15 digits are exact as double
+
+    // replaced (copied) when full, under this
+    private volatile AtomicReferenceArray<@Nullable Slot> slots = new AtomicReferenceArray<>(INITIAL_SLOTS);
+
+    // guarded by this
+    private int[] freeSlots = new int[INITIAL_SLOTS];
+    private int freeCount;
+    private int used; // slots in [0, used) have been allocated at least once
+    private long releasedPublished; // statistics of released slots
+    private long releasedSuppressed;
+
+    /**
+     * Allocate a slot for a device
+     *
+     * @param ownId      the device ownId
+     * @param channelIds ids of the device channels
+     * @return the slot
+     */
+    synchronized int allocate(String ownId, String[] channelIds) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (used == slots.length()) {
+                grow();
+            }
+            slot = used++;
+        }
+        slots.set(slot, new Slot(ownId, Arrays.copyOf(channelIds, Math.min(channelIds.length, STRIDE))));
+        return slot;
+    }
+
+    /**
+     * Release the slot of a device that has been un-registered
+     */
+    synchronized void release(int slot) {
+        if (slot < 0 || slot >= used) {
+            return;
+        }
+        Slot s = slots.getAndSet(slot, null);
+        if (s == null) {
+            return;
+        }
+        synchronized (s) {
+            releasedPublished += s.published;
+            releasedSuppressed += s.suppressed;
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Record a state to be published for a device channel
+     *
+     * @return true if the state changed (or the channel is not tracked) and must be published
+     */
+    boolean update(int slot, String channelId, State state) {
+        Slot s = slot(slot);
+        int c = s == null ? -1 : s.index(channelId);
+        if (s == null || c < 0) {
+            return true;
+        }
+        synchronized (s) {
+            if (s.set(c, state)) {
+                s.published++;
+                return true;
+            }
+            s.suppressed++;
+            return false;
+        }
+    }
+
+    /**
+     * Forget the last published state of a channel: the next state is published also if not changed
+     */
+    void invalidate(int slot, String channelId) {
+        Slot s = slot(slot);
+        int c = s == null ? -1 : s.index(channelId);
+        if (s != null && c >= 0) {
+            synchronized (s) {
+                s.kinds[c] = NONE;
+                s.others[c] = null;
+            }
+        }
+    }
+
+    /**
+     * Record if the thing of a device is ONLINE
+     */
+    void setOnline(int slot, boolean isOnline) {
+        Slot s = slot(slot);
+        if (s != null) {
+            s.online = isOnline;
+        }
+    }
+
+    /**
+     * Returns true if the thing of a device is known to be ONLINE
+     */
+    boolean isOnline(int slot) {
+        Slot s = slot(slot);
+        return s != null && s.online;
+    }
+
+    /**
+     * Returns the last published states of all devices, for diagnostics: ownId -> (channel -> state). The
+     * <code>online</code> entry of each device tells if its thing is ONLINE.
+     */
+    Map<String, Map<String, String>> getStates() {
+        Map<String, Map<String, String>> all = new TreeMap<>();
+        AtomicReferenceArray<@Nullable Slot> table = slots;
+        for (int i = 0; i < table.length(); i++) {
+            Slot s = table.get(i);
+            if (s == null) {
+                continue;
+            }
+            Map<String, String> device = new LinkedHashMap<>();
+            device.put("online", Boolean.toString(s.online));
+            synchronized (s) {
+                for (int c = 0; c < s.channelIds.length; c++) {
+                    String state = s.toString(c);
+                    if (state != null) {
+                        device.put(s.channelIds[c], state);
+                    }
+                }
+            }
+            all.put(s.ownId, device);
+        }
+        return all;
+    }
+
+    /**
+     * Returns a human readable summary of shadow state statistics
+     */
+    synchronized String getStatistics() {
+        long published = releasedPublished;
+        long suppressed = releasedSuppressed;
+        for (int i = 0; i < used; i++) {
+            Slot s = slots.get(i);
+            if (s != null) {
+                synchronized (s) {
+                    published += s.published;
+                    suppressed += s.suppressed;
+                }
+            }
+        }
+        return String.format("devices=%d slots=%d published=%d suppressed=%d", used - freeCount, slots.length(),
+                published, suppressed);
+    }
+
+    private @Nullable Slot slot(int slot) {
+        AtomicReferenceArray<@Nullable Slot> table = slots;
+        return slot < 0 || slot >= table.length() ? null : table.get(slot);
+    }
+
+    private void grow() {
+        AtomicReferenceArray<@Nullable Slot> table = slots;
+        AtomicReferenceArray<@Nullable Slot> bigger = new AtomicReferenceArray<>(table.length() * 2);
+        for (int i = 0; i < table.length(); i++) {
+            bigger.set(i, table.get(i));
+        }
+        freeSlots = Arrays.copyOf(freeSlots, bigger.length());
+        slots = bigger;
+    }
+
+    /**
+     * The channels states of a device, guarded by the slot itself
+     */
+    private static final class Slot {
+        private final String ownId;
+        private final String[] channelIds;
+        private final byte[] kinds = new byte[STRIDE];
+        private final long[] values = new long[STRIDE];
+        private final @Nullable State[] others = new State[STRIDE]; // states that are not encoded
+        private volatile boolean online;
+        private long published;
+        private long suppressed;
+
+        Slot(String ownId, String[] channelIds) {
+            this.ownId = ownId;
+            this.channelIds = channelIds;
+        }
+
+        int index(String channelId) {
+            for (int c = 0; c < channelIds.length; c++) {
+                if (channelIds[c].equals(channelId)) {
+                    return c;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Store the state of a channel
+         *
+         * @return true if the state changed
+         */
+        boolean set(int c, State state) {
+            byte kind = OBJECT;
+            long value = 0;
+            // exact classes: subclasses (e.g. HSBType) are compared as objects
+            if (state instanceof OnOffType) {
+                kind = ONOFF;
+                value = state == OnOffType.ON ? 1 : 0;
+            } else if (state.getClass() == PercentType.class || state.getClass() == DecimalType.class) {
+                BigDecimal v = ((DecimalType) state).toBigDecimal();
+                if (v.precision() <= MAX_EXACT_DIGITS) {
+                    kind = state.getClass() == PercentType.class ? PERCENT : DECIMAL;
+                    value = Double.doubleToLongBits(v.doubleValue());
+                }
+            }
+            if (kind == OBJECT) {
+                if (kinds[c] == OBJECT && state.equals(others[c])) {
+                    return false;
+                }
+                others[c] = state;
+            } else {
+                if (kinds[c] == kind && values[c] == value) {
+                    return false;
+                }
+                values[c] = value;
+                others[c] = null;
+            }
+            kinds[c] = kind;
+            return true;
+        }
+
+        @Nullable
+        String toString(int c) {
+            switch (kinds[c]) {
+                case ONOFF:
+                    return values[c] == 1 ? OnOffType.ON.toString() : OnOffType.OFF.toString();
+                case PERCENT:
+                case DECIMAL:
+                    return BigDecimal.valueOf(Double.longBitsToDouble(values[c])).stripTrailingZeros().toPlainString();
+                case OBJECT:
+                    State state = others[c];
+                    return state == null ? null : state.toString();
+                default:
+                    return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openwebnet.message.OpenMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetShutterMoveOrchestrator} times the STOPs of the percent moves of all the shutters of a bridge
+ * (see {@link OpenWebNetShutterPositionEngine}). Stop deadlines are kept ordered in a single queue with one timer
+ * armed for the earliest deadline: STOPs due together are sent in a single batch, in deadline order, before all other
+ * queued commands. When many shutters are moved together (e.g. a facade set to 50%) they are started with
+ * Area/Group frames by the {@link OpenWebNetCommandOptimizer}, and stopped here.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetShutterMoveOrchestrator {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetShutterMoveOrchestrator.class);
+
+    // STOPs due within half a timer tick are sent together
+    private static final long DUE_NANOS = TimeUnit.MILLISECONDS.toNanos(OpenWebNetTimerService.TICK_MS) / 2;
+
+    private final OpenWebNetTimerService timers;
+    private final Function<List<OpenMessage>, CompletableFuture<List<OpenMessage>>> stopSender;
+
+    private final PriorityQueue<StopDeadline> deadlines = new PriorityQueue<>(); // guarded by this
+    private final Map<OpenWebNetShutterPositionEngine, StopDeadline> pending = new IdentityHashMap<>(); // guarded
+    private OpenWebNetTimerService.@Nullable Timeout timer; // guarded by this
+    private long timerDeadlineNanos; // guarded by this
+    private long seq; // guarded by this
+
+    // statistics, guarded by this
+    private long scheduled;
+    private long stops;
+    private long batches;
+    private int maxBatch;
+    private long totalLateNanos;
+
+    /**
+     * @param timers     timer service for the STOP deadlines
+     * @param stopSender sends a batch of STOP commands, before other queued commands
+     */
+    OpenWebNetShutterMoveOrchestrator(OpenWebNetTimerService timers,
+            Function<List<OpenMessage>, CompletableFuture<List<OpenMessage>>> stopSender) {
+        this.timers = timers;
+        this.stopSender = stopSender;
+    }
+
+    /**
+     * Schedule the STOP of a shutter, replacing the one already scheduled for it
+     *
+     * @param engine        the shutter position engine, asked for the STOP command when due
+     * @param deadlineNanos when the STOP must be sent ({@link System#nanoTime()})
+     */
+    synchronized void schedule(OpenWebNetShutterPositionEngine engine, long deadlineNanos) {
+        StopDeadline previous = pending.remove(engine);
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+        StopDeadline deadline = new StopDeadline(engine, deadlineNanos, seq++);
+        pending.put(engine, deadline);
+        deadlines.add(deadline);
+        scheduled++;
+        armTimer();
+    }
+
+    /**
+     * Cancel the STOP scheduled for a shutter, if any
+     */
+    synchronized void cancel(OpenWebNetShutterPositionEngine engine) {
+        StopDeadline deadline = pending.remove(engine);
+        if (deadline != null) {
+            deadline.cancelled = true;
+        }
+    }
+
+    /**
+     * Cancel all scheduled STOPs
+     */
+    synchronized void shutdown() {
+        deadlines.clear();
+        pending.clear();
+        OpenWebNetTimerService.Timeout t = timer;
+        if (t != null) {
+            t.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * Returns a human readable summary of STOPs statistics
+     */
+    synchronized String getStatistics() {
+        return String.format("moving=%d scheduled=%d stops=%d batches=%d maxBatch=%d avgLate=%.1fms", pending.size(),
+                scheduled, stops, batches, maxBatch, stops == 0 ? 0.0 : totalLateNanos / 1e6 / stops);
+    }
+
+    /** arm the timer for the earliest deadline, guarded by this */
+    private void armTimer() {
+        StopDeadline head;
+        while ((head = deadlines.peek()) != null && head.cancelled) {
+            deadlines.poll();
+        }
+        OpenWebNetTimerService.Timeout t = timer;
+        if (head == null) {
+            if (t != null) {
+                t.cancel();
+                timer = null;
+            }
+            return;
+        }
+        if (t == null || t.isDone() || head.deadlineNanos < timerDeadlineNanos) {
+            long delayMs = TimeUnit.NANOSECONDS.toMillis(Math.max(0, head.deadlineNanos - System.nanoTime()));
+            timer = timers.reschedule(t, this::fire, delayMs);
+            timerDeadlineNanos = head.deadlineNanos;
+        }
+    }
+
+    private void fire() {
+        List<OpenWebNetShutterPositionEngine> due = new ArrayList<>();
+        synchronized (this) {
+            timer = null;
+            long now = System.nanoTime();
+            StopDeadline head;
+            while ((head = deadlines.peek()) != null && head.deadlineNanos <= now + DUE_NANOS) {
+                deadlines.poll();
+                if (!head.cancelled) {
+                    pending.remove(head.engine);
+                    due.add(head.engine);
+                    totalLateNanos += Math.max(0, now - head.deadlineNanos);
+                }
+            }
+            armTimer();
+        }
+        // STOP commands are built outside the lock: engines call schedule()/cancel() holding their own lock
+        List<OpenMessage> msgs = new ArrayList<>(due.size());
+        for (OpenWebNetShutterPositionEngine engine : due) {
+            OpenMessage stop = engine.stopDue();
+            if (stop != null) {
+                msgs.add(stop);
+            }
+        }
+        if (msgs.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            stops += msgs.size();
+            batches++;
+            maxBatch = Math.max(maxBatch, msgs.size());
+        }
+        logger.debug("==OWN:ShutterMoves== sending {} STOPs", msgs.size());
+        stopSender.apply(msgs).whenComplete((responses, e) -> {
+            if (e != null) {
+                logger.warn("==OWN:ShutterMoves== could not send {} STOPs: {}", msgs.size(), e.getMessage());
+            }
+        });
+    }
+
+    private static class StopDeadline implements Comparable<StopDeadline> {
+        private final OpenWebNetShutterPositionEngine engine;
+        private final long deadlineNanos;
+        private final long seq;
+        private boolean cancelled; // guarded by the orchestrator
+
+        StopDeadline(OpenWebNetShutterPositionEngine engine, long deadlineNanos, long seq) {
+            this.engine = engine;
+            this.deadlineNanos = deadlineNanos;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(StopDeadline other) {
+            int c = Long.compare(deadlineNanos, other.deadlineNanos);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openwebnet.message.OpenMessage;
+
+/**
+ * The {@link OpenWebNetShutterPositionEngine} estimates the position of a shutter from the time it moves, and stops it
+ * at the position requested by a percent command.
+ * <p>
+ * Times are measured with the monotonic clock, between the UP/DOWN frame and the STOP frame received from the BUS.
+ * Run times are different for the two directions. The STOP for a percent move is scheduled when the shutter is seen
+ * moving (not when the move command is queued), and it is sent in advance by the STOP latency, that is learned from
+ * the time between a STOP command and the STOP frame. STOPs of all shutters are timed by the
+ * {@link OpenWebNetShutterMoveOrchestrator} of the bridge. The error between the requested and reached position of
+ * each percent move is recorded (see {@link #getAccuracy()}).
+ * <p>
+ * Run times are learned continuously: each full run from one end position to the other that is not stopped by a
+ * STOP command (i.e. stopped by the actuator end-stop timeout) is a sample of the run time of its direction, and
+ * updates a smoothed estimate. Samples much shorter or longer than the current estimate (e.g. a STOP from a wall
+ * switch) are discarded. See {@link #getCalibrationQuality()}.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetShutterPositionEngine {
+
+    static final int RUN_UNDEFINED = -1;
+
+    private static final double LATENCY_ALPHA = 0.3; // weight of a new STOP latency sample
+    private static final long MAX_LATENCY_MS = 2000; // longer samples (e.g. STOP from a wall switch) are ignored
+    private static final double RUN_ALPHA = 0.2; // weight of a new run time sample
+    private static final double MIN_RUN_RATIO = 0.9; // shorter full runs are assumed stopped by someone else
+    private static final double MAX_RUN_RATIO = 1.5;
+    private static final int GOOD_SAMPLES = 3; // samples in each direction for a good calibration
+    private static final double GOOD_DEVIATION = 0.02; // max average deviation of samples for a good calibration
+    private static final double FAIR_DEVIATION = 0.05;
+
+    private final OpenWebNetShutterMoveOrchestrator orchestrator;
+    private final Supplier<OpenMessage> stopMessage;
+
+    // all fields guarded by this
+    private int upRun = RUN_UNDEFINED; // (ms) from full DOWN to full UP
+    private int downRun = RUN_UNDEFINED; // (ms) from full UP to full DOWN
+    // System.nanoTime() may be negative: explicit flags tell if the times are set
+    private boolean moving;
+    private long movingSinceNanos;
+    private boolean stopSent;
+    private long stopSentNanos;
+    private double stopLatencyMs;
+    private int latencySamples;
+    private boolean lastStopCommanded;
+
+    // run times learning
+    private int upSamples;
+    private int downSamples;
+    private double upDeviation; // smoothed relative deviation of samples from the estimate
+    private double downDeviation;
+    private int rejectedSamples;
+
+    // percent move in progress
+    private int target = -1;
+    private boolean targetDown;
+    private long targetMoveMs;
+    private boolean stopPlanned;
+    private long plannedStopNanos;
+
+    // accuracy statistics
+    private int moves;
+    private long totalError;
+    private int maxError;
+    private long totalStopErrorMs;
+
+    /**
+     * @param orchestrator times the STOPs of percent moves
+     * @param stopMessage  builds the STOP command for the shutter
+     */
+    OpenWebNetShutterPositionEngine(OpenWebNetShutterMoveOrchestrator orchestrator,
+            Supplier<OpenMessage> stopMessage) {
+        this.orchestrator = orchestrator;
+        this.stopMessage = stopMessage;
+    }
+
+    /**
+     * @param upRun   time (ms) from full DOWN to full UP, or {@link #RUN_UNDEFINED}
+     * @param downRun time (ms) from full UP to full DOWN, or {@link #RUN_UNDEFINED}
+     */
+    synchronized void setRunTimes(int upRun, int downRun) {
+        this.upRun = upRun;
+        this.downRun = downRun;
+    }
+
+    synchronized boolean hasRunTimes() {
+        return upRun > 0 && downRun > 0;
+    }
+
+    synchronized int getUpRun() {
+        return upRun;
+    }
+
+    synchronized int getDownRun() {
+        return downRun;
+    }
+
+    /**
+     * Returns the time (ms) needed to move between two positions
+     */
+    synchronized long moveTime(int from, int to) {
+        int run = to > from ? downRun : upRun;
+        return Math.round((double) Math.abs(to - from) / OpenWebNetAutomationHandler.POSITION_MAX_STEPS * run);
+    }
+
+    /**
+     * Returns the number of position steps moved in a direction in the given time
+     */
+    synchronized int steps(boolean down, long movedMs) {
+        int run = down ? downRun : upRun;
+        if (run <= 0) {
+            return 0;
+        }
+        return (int) Math.round((double) movedMs / run * OpenWebNetAutomationHandler.POSITION_MAX_STEPS);
+    }
+
+    /**
+     * Prepare a percent move: the STOP is scheduled when the shutter starts moving in the direction of the target
+     */
+    synchronized void moveTo(int from, int to) {
+        cancelTarget();
+        target = to;
+        targetDown = to > from;
+        targetMoveMs = moveTime(from, to);
+    }
+
+    /**
+     * The shutter started moving (UP/DOWN frame received)
+     */
+    synchronized void started(boolean down) {
+        long now = System.nanoTime();
+        moving = true;
+        movingSinceNanos = now;
+        stopSent = false;
+        if (target < 0 || stopPlanned) {
+            return;
+        }
+        if (targetDown != down) {
+            cancelTarget(); // moved by someone else
+            return;
+        }
+        stopPlanned = true;
+        plannedStopNanos = now + TimeUnit.MILLISECONDS.toNanos(targetMoveMs);
+        orchestrator.schedule(this, plannedStopNanos - TimeUnit.MILLISECONDS.toNanos(Math.round(stopLatencyMs)));
+    }
+
+    /**
+     * The STOP of the percent move in progress is due
+     *
+     * @return the STOP command to send, or null if the move has been cancelled
+     */
+    synchronized @Nullable OpenMessage stopDue() {
+        if (target < 0 || !stopPlanned) {
+            return null;
+        }
+        stopSent();
+        return stopMessage.get();
+    }
+
+    /**
+     * A STOP command is being sent to the shutter
+     */
+    synchronized void stopSent() {
+        if (moving && !stopSent) {
+            stopSent = true;
+            stopSentNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Returns the time (ms) since the shutter started moving, or -1 if it is not known to be moving
+     */
+    synchronized long elapsedMs() {
+        return moving ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - movingSinceNanos) : -1;
+    }
+
+    /**
+     * The shutter stopped, or changed direction (frame received)
+     *
+     * @return the time (ms) the shutter moved, or -1 if it was not known to be moving
+     */
+    synchronized long stopped() {
+        long now = System.nanoTime();
+        long moved = moving ? TimeUnit.NANOSECONDS.toMillis(now - movingSinceNanos) : -1;
+        if (stopSent) {
+            long latency = TimeUnit.NANOSECONDS.toMillis(now - stopSentNanos);
+            if (latency <= MAX_LATENCY_MS) {
+                stopLatencyMs = latencySamples == 0 ? latency
+                        : LATENCY_ALPHA * latency + (1 - LATENCY_ALPHA) * stopLatencyMs;
+                latencySamples++;
+            }
+        }
+        orchestrator.cancel(this);
+        lastStopCommanded = stopSent;
+        moving = false;
+        stopSent = false;
+        return moved;
+    }
+
+    /**
+     * A full run between the two end positions has been observed: if it was not stopped by a STOP command, update the
+     * run time estimate of its direction
+     *
+     * @param down    direction of the run
+     * @param movedMs time (ms) the shutter moved, as returned by {@link #stopped()}
+     * @return true if the run time estimate has been updated
+     */
+    synchronized boolean learnFullRun(boolean down, long movedMs) {
+        if (lastStopCommanded || movedMs <= 0) {
+            return false;
+        }
+        int run = down ? downRun : upRun;
+        if (run > 0 && (movedMs < run * MIN_RUN_RATIO || movedMs > run * MAX_RUN_RATIO)) {
+            rejectedSamples++;
+            return false;
+        }
+        double deviation = run > 0 ? Math.abs(movedMs - run) / (double) run : 1.0;
+        int learned = run > 0 ? (int) Math.round(RUN_ALPHA * movedMs + (1 - RUN_ALPHA) * run) : (int) movedMs;
+        if (down) {
+            downDeviation = downSamples == 0 ? deviation : RUN_ALPHA * deviation + (1 - RUN_ALPHA) * downDeviation;
+            downSamples++;
+            downRun = learned;
+        } else {
+            upDeviation = upSamples == 0 ? deviation : RUN_ALPHA * deviation + (1 - RUN_ALPHA) * upDeviation;
+            upSamples++;
+            upRun = learned;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a human readable indicator of the quality of the learned run times: <code>configured</code> (no full
+     * runs observed yet), <code>poor</code>, <code>fair</code> or <code>good</code>, with the number of samples and
+     * their average deviation for each direction
+     */
+    synchronized String getCalibrationQuality() {
+        String quality;
+        if (upSamples == 0 && downSamples == 0) {
+            quality = "configured";
+        } else {
+            double deviation = Math.max(upDeviation, downDeviation);
+            if (upSamples < GOOD_SAMPLES || downSamples < GOOD_SAMPLES || deviation > FAIR_DEVIATION) {
+                quality = "poor";
+            } else if (deviation > GOOD_DEVIATION) {
+                quality = "fair";
+            } else {
+                quality = "good";
+            }
+        }
+        return String.format(
+                "%s upRun=%dms (%d samples, dev=%.1f%%) downRun=%dms (%d samples, dev=%.1f%%) rejected=%d", quality,
+                upRun, upSamples, upDeviation * 100, downRun, downSamples, downDeviation * 100, rejectedSamples);
+    }
+
+    /**
+     * Record the position reached after a stop: if a percent move was in progress, its error is recorded
+     *
+     * @return true if a percent move was completed
+     */
+    synchronized boolean reached(int position) {
+        if (target < 0 || !stopPlanned) {
+            return false;
+        }
+        int error = Math.abs(position - target);
+        moves++;
+        totalError += error;
+        maxError = Math.max(maxError, error);
+        totalStopErrorMs += Math.abs(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - plannedStopNanos));
+        cancelTarget();
+        return true;
+    }
+
+    /**
+     * Cancel the percent move in progress, if any
+     */
+    synchronized void cancel() {
+        cancelTarget();
+    }
+
+    /**
+     * Returns a human readable summary of the accuracy of percent moves
+     */
+    synchronized String getAccuracy() {
+        return String.format(
+                "moves=%d avgError=%.1f%% maxError=%d%% avgStopError=%dms stopLatency=%dms upRun=%dms downRun=%dms",
+                moves, moves == 0 ? 0.0 : (double) totalError / moves, maxError,
+                moves == 0 ? 0 : totalStopErrorMs / moves, Math.round(stopLatencyMs), upRun, downRun);
+    }
+
+    private void cancelTarget() {
+        orchestrator.cancel(this);
+        target = -1;
+        stopPlanned = false;
+    }
+}
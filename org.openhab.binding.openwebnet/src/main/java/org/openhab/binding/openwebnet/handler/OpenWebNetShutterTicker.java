@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetShutterTicker} publishes the interpolated position of the moving shutters of a bridge at a fixed
+ * rate (see {@link OpenWebNetAutomationHandler#publishInterpolatedPosition()}). A single periodic task serves all
+ * moving shutters, run by the bridge {@link OpenWebNetTimerService}: it is started when the first shutter starts moving
+ * and stopped when no shutter is moving. Moving
+ * shutters are kept in arrays that are re-used at each tick.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetShutterTicker {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetShutterTicker.class);
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final OpenWebNetTimerService timers;
+
+    // all fields guarded by this
+    private @Nullable OpenWebNetAutomationHandler[] moving = new OpenWebNetAutomationHandler[INITIAL_CAPACITY];
+    private int count;
+    private OpenWebNetTimerService.@Nullable Timeout tickSchedule;
+    private long tickGeneration; // current tick chain
+    private int rate = 2; // (Hz) 0 = disabled
+    private long ticks;
+
+    // copy of moving shutters used by the tick, only accessed by the timer thread running the tick
+    private @Nullable OpenWebNetAutomationHandler[] tickBuffer = new OpenWebNetAutomationHandler[INITIAL_CAPACITY];
+
+    /**
+     * @param timers timer service running the periodic tick
+     */
+    OpenWebNetShutterTicker(OpenWebNetTimerService timers) {
+        this.timers = timers;
+    }
+
+    /**
+     * @param rate number of position updates per second for moving shutters, 0 to disable them
+     */
+    synchronized void setRate(int rate) {
+        this.rate = Math.max(0, rate);
+        cancelTick();
+        if (count > 0) {
+            startTick();
+        }
+    }
+
+    /**
+     * A shutter started moving: publish its position at each tick
+     */
+    synchronized void moving(OpenWebNetAutomationHandler handler) {
+        for (int i = 0; i < count; i++) {
+            if (moving[i] == handler) {
+                return;
+            }
+        }
+        if (count == moving.length) {
+            moving = Arrays.copyOf(moving, count * 2);
+        }
+        moving[count++] = handler;
+        if (tickSchedule == null) {
+            startTick();
+        }
+    }
+
+    /**
+     * A shutter stopped (or its thing is disposed): stop publishing its position
+     */
+    synchronized void stopped(OpenWebNetAutomationHandler handler) {
+        for (int i = 0; i < count; i++) {
+            if (moving[i] == handler) {
+                moving[i] = moving[--count];
+                moving[count] = null;
+                break;
+            }
+        }
+        if (count == 0) {
+            cancelTick();
+        }
+    }
+
+    /**
+     * Stop the ticker and forget moving shutters
+     */
+    synchronized void shutdown() {
+        Arrays.fill(moving, null);
+        count = 0;
+        cancelTick();
+    }
+
+    /**
+     * Returns a human readable summary of ticker statistics
+     */
+    synchronized String getStatistics() {
+        return String.format("moving=%d rate=%d/s ticking=%b ticks=%d", count, rate, tickSchedule != null, ticks);
+    }
+
+    private void startTick() {
+        if (rate > 0) {
+            long gen = ++tickGeneration;
+            tickSchedule = timers.schedule(() -> tick(gen), periodMs());
+        }
+    }
+
+    private void cancelTick() {
+        OpenWebNetTimerService.Timeout s = tickSchedule;
+        if (s != null) {
+            s.cancel();
+            tickSchedule = null;
+        }
+    }
+
+    private long periodMs() {
+        return Math.max(OpenWebNetTimerService.TICK_MS, 1000 / rate);
+    }
+
+    private void tick(long gen) {
+        @Nullable
+        OpenWebNetAutomationHandler[] buffer;
+        int n;
+        synchronized (this) {
+            if (gen != tickGeneration || tickSchedule == null) { // cancelled or restarted
+                return;
+            }
+            tickSchedule = timers.schedule(() -> tick(gen), periodMs());
+            n = count;
+            if (tickBuffer.length < n) {
+                tickBuffer = new OpenWebNetAutomationHandler[moving.length];
+            }
+            buffer = tickBuffer;
+            System.arraycopy(moving, 0, buffer, 0, n);
+            ticks++;
+        }
+        // handlers are called outside the lock: they call moving()/stopped() from their own threads
+        for (int i = 0; i < n; i++) {
+            OpenWebNetAutomationHandler handler = buffer[i];
+            buffer[i] = null;
+            if (handler != null) {
+                try {
+                    handler.publishInterpolatedPosition();
+                } catch (RuntimeException e) {
+                    logger.debug("==OWN:ShutterTicker== could not publish position of thing {}: {}",
+                            handler.getThing().getUID(), e.getMessage());
+                }
+            }
+        }
+    }
+}
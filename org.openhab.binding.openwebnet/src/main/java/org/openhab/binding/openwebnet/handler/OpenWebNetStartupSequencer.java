@@ -0,0 +1,241 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetStartupSequencer} admits device refreshes at a rate the gateway can sustain. When openHAB starts
+ * all things are initialized at the same time: instead of sending a status request (and starting the state request
+ * timeout) for all of them at once, devices are queued and refreshed one at a time, things with linked items first,
+ * then devices with a known recent state (see {@link OpenWebNetStateSnapshot}), then the others.
+ * <p>
+ * Startup is in progress from bridge initialization until the first state resync is completed (see
+ * {@link OpenWebNetStateResync}) and all queued devices have been refreshed.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetStartupSequencer {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetStartupSequencer.class);
+
+    static final int PRIORITY_LINKED = 0; // things with linked items
+    static final int PRIORITY_ACTIVE = 1; // devices with a known recent state
+    static final int PRIORITY_OTHER = 2;
+
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+
+    private final OpenWebNetTimerService timers;
+    private final Consumer<String> progressListener;
+    private final Runnable completedListener;
+
+    private final PriorityQueue<Admission> queue = new PriorityQueue<>(); // guarded by this
+    private final Set<OpenWebNetThingHandler> queued = Collections.newSetFromMap(new IdentityHashMap<>()); // guarded
+    private OpenWebNetTimerService.@Nullable Timeout admitSchedule; // guarded by this
+    private volatile int rate = 10; // devices per second
+    private volatile boolean inProgress;
+    private boolean resyncCompleted; // guarded by this
+    private long seq; // guarded by this
+    private long startNanos; // guarded by this
+    private long lastProgressNanos; // guarded by this
+
+    // statistics
+    private int admitted; // guarded by this
+    private int total; // guarded by this
+    private long durationMs = -1; // guarded by this
+
+    /**
+     * @param timers           timer service used to admit queued devices
+     * @param progressListener  receives the startup progress (see {@link #getProgress()})
+     * @param completedListener called when startup is completed
+     */
+    OpenWebNetStartupSequencer(OpenWebNetTimerService timers, Consumer<String> progressListener,
+            Runnable completedListener) {
+        this.timers = timers;
+        this.progressListener = progressListener;
+        this.completedListener = completedListener;
+    }
+
+    /**
+     * @param rate number of devices refreshed per second
+     */
+    void setRate(int rate) {
+        this.rate = Math.max(1, rate);
+    }
+
+    /**
+     * Start the startup phase: device refreshes are queued until it is completed (see {@link #isInProgress()})
+     */
+    synchronized void start() {
+        cancel();
+        inProgress = true;
+        resyncCompleted = false;
+        admitted = 0;
+        total = 0;
+        durationMs = -1;
+        startNanos = System.nanoTime();
+        lastProgressNanos = startNanos;
+    }
+
+    /**
+     * Stop the sequencer: queued devices are discarded
+     */
+    synchronized void cancel() {
+        OpenWebNetTimerService.Timeout s = admitSchedule;
+        if (s != null) {
+            s.cancel();
+            admitSchedule = null;
+        }
+        queue.clear();
+        queued.clear();
+        inProgress = false;
+    }
+
+    /**
+     * Returns true while startup is in progress: device refreshes should be queued with
+     * {@link #admit(OpenWebNetThingHandler, int)}
+     */
+    boolean isInProgress() {
+        return inProgress;
+    }
+
+    /**
+     * Queue a device refresh. A device already queued is refreshed once.
+     *
+     * @param handler  the device handler, refreshed with {@link OpenWebNetThingHandler#refreshDevice()}
+     * @param priority one of {@link #PRIORITY_LINKED}, {@link #PRIORITY_ACTIVE}, {@link #PRIORITY_OTHER}
+     */
+    synchronized void admit(OpenWebNetThingHandler handler, int priority) {
+        if (!queued.add(handler)) {
+            return;
+        }
+        queue.add(new Admission(handler, priority, seq++));
+        if (inProgress) {
+            total++;
+        }
+        if (admitSchedule == null) {
+            admitSchedule = timers.schedule(this::admitNext, 0);
+        }
+    }
+
+    /**
+     * Remove a device from the queue (e.g. when its thing is disposed)
+     */
+    synchronized void remove(OpenWebNetThingHandler handler) {
+        if (queued.remove(handler)) {
+            queue.removeIf(a -> a.handler == handler);
+            if (inProgress) {
+                total--;
+            }
+        }
+    }
+
+    /**
+     * The first state resync after startup is completed: startup is completed when queued devices are refreshed
+     */
+    synchronized void resyncCompleted() {
+        resyncCompleted = true;
+        checkCompleted();
+    }
+
+    /**
+     * Returns a human readable summary of the startup progress
+     */
+    synchronized String getProgress() {
+        if (durationMs >= 0) {
+            return String.format("completed: %d devices refreshed in %dms", admitted, durationMs);
+        }
+        return String.format("in progress: %d/%d devices refreshed, %d queued, %dms, rate=%d/s", admitted, total,
+                queue.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), rate);
+    }
+
+    private void admitNext() {
+        Admission next;
+        synchronized (this) {
+            next = queue.poll();
+            if (next == null) {
+                admitSchedule = null;
+                checkCompleted();
+                return;
+            }
+            queued.remove(next.handler);
+            if (inProgress) {
+                admitted++;
+            }
+            admitSchedule = timers.schedule(this::admitNext, 1000 / rate);
+            long now = System.nanoTime();
+            if (inProgress && now - lastProgressNanos >= TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL_MS)) {
+                lastProgressNanos = now;
+                publishProgress();
+            }
+        }
+        try {
+            next.handler.refreshDevice();
+        } catch (RuntimeException e) {
+            logger.debug("==OWN:StartupSequencer== could not refresh thing {}: {}", next.handler.getThing().getUID(),
+                    e.getMessage());
+        }
+    }
+
+    private void checkCompleted() {
+        if (inProgress && resyncCompleted && queue.isEmpty()) {
+            inProgress = false;
+            durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            logger.info("==OWN:StartupSequencer== startup completed in {}ms, {} devices refreshed", durationMs,
+                    admitted);
+            publishProgress();
+            try {
+                completedListener.run();
+            } catch (RuntimeException e) {
+                logger.debug("==OWN:StartupSequencer== error at startup completion: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void publishProgress() {
+        try {
+            progressListener.accept(getProgress());
+        } catch (RuntimeException e) {
+            logger.debug("==OWN:StartupSequencer== could not publish progress: {}", e.getMessage());
+        }
+    }
+
+    private static class Admission implements Comparable<Admission> {
+        private final OpenWebNetThingHandler handler;
+        private final int priority;
+        private final long seq;
+
+        Admission(OpenWebNetThingHandler handler, int priority, long seq) {
+            this.handler = handler;
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Admission other) {
+            int c = Integer.compare(priority, other.priority);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openwebnet.message.OpenMessage;
+import org.openwebnet.message.OpenMessageFactory;
+import org.openwebnet.message.Who;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetStateResync} refreshes the state of all registered devices after the gateway is connected or
+ * re-connected. On a BUS gateway one general status request is sent for each WHO supporting it (Lighting, Automation),
+ * and for each local bus in use: devices answer with their state and the replies are routed to registered handlers as
+ * usual. When replies stop (or after a maximum time) a status request is sent only for devices that did not answer,
+ * paced by the {@link OpenWebNetStartupSequencer}.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetStateResync {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetStateResync.class);
+
+    private static final long START_DELAY_MS = 2000; // let things register after connection
+    private static final long QUIET_MS = 1500; // resync is complete when no reply is received for this time
+    private static final long MAX_WAIT_MS = 20000;
+    private static final long CHECK_INTERVAL_MS = 250;
+    private static final String LOCAL_BUS_PREFIX = "#4#";
+
+    private final OpenWebNetTimerService timers;
+    private final Supplier<Collection<OpenWebNetThingHandler>> devices;
+    private final Function<OpenMessage, CompletableFuture<OpenMessage>> sender;
+    private final Consumer<OpenWebNetThingHandler> refresher;
+    private final Runnable completed;
+
+    private final Set<OpenWebNetThingHandler> answered = Collections
+            .synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    private volatile boolean active;
+    private volatile boolean queriesDone;
+    private volatile long startNanos;
+    private volatile long lastReplyNanos;
+    private OpenWebNetTimerService.@Nullable Timeout schedule; // guarded by this
+    private long generation; // current resync, guarded by this
+
+    // statistics
+    private final AtomicLong runs = new AtomicLong();
+    private volatile int lastQueries;
+    private volatile int lastAnswered;
+    private volatile int lastFallback;
+    private volatile long lastDurationMs = -1;
+
+    /**
+     * @param timers    timer service used to run the resync
+     * @param devices   supplies the registered devices
+     * @param sender    sends a state request to the gateway
+     * @param refresher refreshes a device that did not answer general requests
+     * @param completed called when a resync is completed
+     */
+    OpenWebNetStateResync(OpenWebNetTimerService timers, Supplier<Collection<OpenWebNetThingHandler>> devices,
+            Function<OpenMessage, CompletableFuture<OpenMessage>> sender, Consumer<OpenWebNetThingHandler> refresher,
+            Runnable completed) {
+        this.timers = timers;
+        this.devices = devices;
+        this.sender = sender;
+        this.refresher = refresher;
+        this.completed = completed;
+    }
+
+    /**
+     * Start a resync, replacing the one in progress if any. Device refresh requests are deferred to the resync from now
+     * on (see {@link #isActive()}).
+     *
+     * @param generalQueries if true general status requests are sent first (BUS gateway)
+     */
+    synchronized void start(boolean generalQueries) {
+        cancel();
+        active = true;
+        queriesDone = false;
+        answered.clear();
+        long gen = ++generation;
+        logger.debug("==OWN:Resync== state resync scheduled");
+        schedule = timers.schedule(() -> run(generalQueries, gen), START_DELAY_MS);
+    }
+
+    /**
+     * Stop the resync in progress, if any
+     */
+    synchronized void cancel() {
+        OpenWebNetTimerService.Timeout s = schedule;
+        if (s != null) {
+            s.cancel();
+            schedule = null;
+        }
+        active = false;
+    }
+
+    /**
+     * Returns true while a resync is in progress: devices will be refreshed by it
+     */
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * A state frame was received for a device
+     */
+    void answered(OpenWebNetThingHandler handler) {
+        if (active) {
+            answered.add(handler);
+            lastReplyNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Returns a human readable summary of the last resync
+     */
+    String getStatistics() {
+        return String.format("runs=%d generalQueries=%d answered=%d fallback=%d duration=%dms", runs.get(),
+                lastQueries, lastAnswered, lastFallback, lastDurationMs);
+    }
+
+    private synchronized void run(boolean generalQueries, long gen) {
+        if (!active || gen != generation) {
+            return;
+        }
+        runs.incrementAndGet();
+        startNanos = System.nanoTime();
+        lastReplyNanos = startNanos;
+        List<CompletableFuture<OpenMessage>> queries = new ArrayList<>();
+        if (generalQueries) {
+            for (String frame : generalQueryFrames(devices.get())) {
+                logger.debug("==OWN:Resync== sending general status request {}", frame);
+                queries.add(sender.apply(OpenMessageFactory.parse(frame)));
+            }
+        }
+        lastQueries = queries.size();
+        CompletableFuture.allOf(queries.toArray(new CompletableFuture<?>[0])).whenComplete((r, e) -> {
+            lastReplyNanos = System.nanoTime();
+            queriesDone = true;
+        });
+        schedule = timers.schedule(() -> check(gen), CHECK_INTERVAL_MS);
+    }
+
+    private void check(long gen) {
+        long now = System.nanoTime();
+        boolean quiet = queriesDone && now - lastReplyNanos >= TimeUnit.MILLISECONDS.toNanos(QUIET_MS);
+        if (quiet || now - startNanos >= TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MS)) {
+            finish(gen);
+            return;
+        }
+        synchronized (this) {
+            if (active && gen == generation) {
+                schedule = timers.schedule(() -> check(gen), CHECK_INTERVAL_MS);
+            }
+        }
+    }
+
+    private void finish(long gen) {
+        synchronized (this) {
+            if (!active || gen != generation) {
+                return;
+            }
+            cancel();
+        }
+        int fallback = 0;
+        for (OpenWebNetThingHandler handler : devices.get()) {
+            if (!answered.contains(handler)) {
+                fallback++;
+                try {
+                    refresher.accept(handler);
+                } catch (RuntimeException e) {
+                    logger.debug("==OWN:Resync== could not refresh thing {}: {}", handler.getThing().getUID(),
+                            e.getMessage());
+                }
+            }
+        }
+        lastAnswered = answered.size();
+        lastFallback = fallback;
+        lastDurationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        answered.clear();
+        logger.info("==OWN:Resync== state resync completed in {}ms: {} devices answered general requests, {} refreshed",
+                lastDurationMs, lastAnswered, fallback);
+        completed.run();
+    }
+
+    /**
+     * Returns the general status request frames for the WHOs and buses of the registered devices
+     */
+    static Set<String> generalQueryFrames(Collection<OpenWebNetThingHandler> handlers) {
+        Set<String> frames = new LinkedHashSet<>();
+        for (OpenWebNetThingHandler handler : handlers) {
+            String where = handler.deviceWhere;
+            if (where == null) {
+                continue;
+            }
+            String who = handler.ownIdPrefix();
+            if (!who.equals(Who.LIGHTING.value().toString()) && !who.equals(Who.AUTOMATION.value().toString())) {
+                continue;
+            }
+            int bus = where.indexOf(LOCAL_BUS_PREFIX);
+            frames.add("*#" + who + "*0" + (bus > 0 ? where.substring(bus) : "") + "##");
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,348 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetStateSnapshot} keeps the last known state of devices in a memory-mapped file, so that after a
+ * restart devices get their state back at once, before the bus state resync confirms or corrects it.
+ * <p>
+ * Two kinds of entries are stored, in fixed size slots:
+ * <ul>
+ * <li>the last state frame received for a device (one for each dimension for dimension frames), replayed to the device
+ * handler when it registers (see {@link #frames(String)})</li>
+ * <li>values estimated by handlers that cannot be read from the bus, e.g. shutters position (see
+ * {@link #putValue(String, String, String)})</li>
+ * </ul>
+ * Entries are written in the mapped buffer as frames are received: the OS writes the pages to the file. Each slot ends
+ * with a checksum written after its content, slots that do not match it (torn by a power loss while written) are
+ * dropped when the file is opened. Entries of a device are removed when its thing is removed, entries of devices not
+ * registered any more are removed some time after startup (see {@link #retain(Collection)}).
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetStateSnapshot {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetStateSnapshot.class);
+
+    private static final int MAGIC = 0x4F574E53; // "OWNS"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOTS = 2048;
+    private static final int SLOT_SIZE = 128;
+    private static final int MAX_KEY = 47; // slot: keyLen(1) key(47) valueLen(1) value(75) crc(4)
+    private static final int MAX_VALUE = 75;
+    private static final int VALUE_OFFSET = 1 + MAX_KEY;
+    private static final int CRC_OFFSET = SLOT_SIZE - 4;
+
+    private static final String FRAME_PREFIX = "F:";
+    private static final String VALUE_PREFIX = "V:";
+    private static final char SEPARATOR = '/'; // between ownId and dimension/name, not used in WHERE
+
+    private @Nullable FileChannel channel; // guarded by this
+    private @Nullable MappedByteBuffer buffer; // guarded by this
+    private final Map<String, Integer> index = new HashMap<>(); // key -> slot, guarded by this
+    private int nextFree; // guarded by this
+    private final byte[] slotBuffer = new byte[SLOT_SIZE]; // guarded by this
+    private final CRC32 crc = new CRC32(); // guarded by this
+
+    // statistics
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong restored = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+    private final AtomicLong torn = new AtomicLong();
+
+    /**
+     * Open (or create) the snapshot file and load its index
+     *
+     * @param file the snapshot file
+     * @throws IOException if the file cannot be opened
+     */
+    synchronized void open(Path file) throws IOException {
+        close();
+        Files.createDirectories(file.getParent());
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) SLOTS * SLOT_SIZE);
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION || buf.getInt(8) != SLOTS) {
+            logger.debug("==OWN:StateSnapshot== initializing snapshot file {}", file);
+            for (int i = 0; i < HEADER_SIZE + SLOTS * SLOT_SIZE; i++) {
+                buf.put(i, (byte) 0);
+            }
+            buf.putInt(0, MAGIC);
+            buf.putInt(4, VERSION);
+            buf.putInt(8, SLOTS);
+        }
+        channel = ch;
+        buffer = buf;
+        index.clear();
+        nextFree = -1;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            int keyLen = buf.get(offset(slot)) & 0xFF;
+            if (keyLen > 0 && (keyLen > MAX_KEY || !isValid(buf, slot))) {
+                buf.put(offset(slot), (byte) 0); // torn write: drop the slot
+                torn.incrementAndGet();
+                keyLen = 0;
+            }
+            if (keyLen > 0) {
+                index.put(read(buf, offset(slot) + 1, keyLen), slot);
+            } else if (nextFree < 0) {
+                nextFree = slot;
+            }
+        }
+        logger.debug("==OWN:StateSnapshot== opened {} with {} entries ({} dropped)", file, index.size(), torn.get());
+    }
+
+    /**
+     * Write pending changes to the file and close it
+     */
+    synchronized void close() {
+        MappedByteBuffer buf = buffer;
+        FileChannel ch = channel;
+        buffer = null;
+        channel = null;
+        index.clear();
+        if (buf != null) {
+            buf.force();
+        }
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                logger.debug("==OWN:StateSnapshot== error closing snapshot file: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Store the last state frame of a device
+     *
+     * @param ownId     the device ownId
+     * @param dimension the dimension of a dimension frame, or null for a command frame
+     * @param frame     the frame
+     */
+    void putFrame(String ownId, @Nullable String dimension, String frame) {
+        put(FRAME_PREFIX + ownId + (dimension == null ? "" : SEPARATOR + dimension), frame);
+    }
+
+    /**
+     * Returns the last state frames stored for a device
+     */
+    synchronized List<String> frames(String ownId) {
+        List<String> frames = new ArrayList<>();
+        MappedByteBuffer buf = buffer;
+        if (buf == null) {
+            return frames;
+        }
+        for (Map.Entry<String, Integer> e : index.entrySet()) {
+            String k = e.getKey();
+            if (k.startsWith(FRAME_PREFIX) && ownIdOf(k).equals(ownId)) {
+                frames.add(readValue(buf, e.getValue()));
+            }
+        }
+        restored.addAndGet(frames.size());
+        return frames;
+    }
+
+    /**
+     * Returns true if a state frame or value is stored for a device, i.e. the device was active recently
+     */
+    synchronized boolean contains(String ownId) {
+        for (String k : index.keySet()) {
+            if (ownIdOf(k).equals(ownId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove all the entries of a device (its thing has been removed)
+     */
+    synchronized void remove(String ownId) {
+        Iterator<Map.Entry<String, Integer>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Integer> e = it.next();
+            if (ownIdOf(e.getKey()).equals(ownId)) {
+                it.remove();
+                free(e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Remove the entries of all devices but the given ones, e.g. devices whose things have been deleted or re-addressed
+     * while the binding was not running
+     *
+     * @param ownIds ownIds of the devices to keep
+     */
+    synchronized void retain(Collection<String> ownIds) {
+        Iterator<Map.Entry<String, Integer>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Integer> e = it.next();
+            if (!ownIds.contains(ownIdOf(e.getKey()))) {
+                it.remove();
+                free(e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Store a value estimated by a device handler
+     */
+    void putValue(String ownId, String name, String value) {
+        put(VALUE_PREFIX + ownId + SEPARATOR + name, value);
+    }
+
+    /**
+     * Returns a value stored by a device handler, or null
+     */
+    synchronized @Nullable String getValue(String ownId, String name) {
+        MappedByteBuffer buf = buffer;
+        Integer slot = index.get(VALUE_PREFIX + ownId + SEPARATOR + name);
+        return buf == null || slot == null ? null : readValue(buf, slot);
+    }
+
+    /**
+     * Remove a value stored by a device handler
+     */
+    synchronized void removeValue(String ownId, String name) {
+        Integer slot = index.remove(VALUE_PREFIX + ownId + SEPARATOR + name);
+        if (slot != null) {
+            free(slot);
+        }
+    }
+
+    /**
+     * Returns a human readable summary of snapshot statistics
+     */
+    synchronized String getStatistics() {
+        return String.format("entries=%d/%d writes=%d restored=%d skipped=%d removed=%d torn=%d", index.size(), SLOTS,
+                writes.get(), restored.get(), skipped.get(), removed.get(), torn.get());
+    }
+
+    private synchronized void put(String key, String value) {
+        MappedByteBuffer buf = buffer;
+        if (buf == null) {
+            return;
+        }
+        byte[] k = key.getBytes(StandardCharsets.US_ASCII);
+        byte[] v = value.getBytes(StandardCharsets.US_ASCII);
+        Integer slot = index.get(key);
+        if (k.length > MAX_KEY || v.length > MAX_VALUE || (slot == null && nextFree < 0)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        if (slot == null) {
+            slot = nextFree;
+            index.put(key, slot);
+            nextFree = findFree(slot + 1);
+        }
+        // content first, then the checksum: a slot torn by a power loss does not match its checksum
+        byte[] s = slotBuffer;
+        Arrays.fill(s, (byte) 0);
+        s[0] = (byte) k.length;
+        System.arraycopy(k, 0, s, 1, k.length);
+        s[VALUE_OFFSET] = (byte) v.length;
+        System.arraycopy(v, 0, s, VALUE_OFFSET + 1, v.length);
+        int off = offset(slot);
+        for (int i = 0; i < CRC_OFFSET; i++) {
+            buf.put(off + i, s[i]);
+        }
+        crc.reset();
+        crc.update(s, 0, CRC_OFFSET);
+        buf.putInt(off + CRC_OFFSET, (int) crc.getValue());
+        writes.incrementAndGet();
+    }
+
+    private void free(int slot) {
+        MappedByteBuffer buf = buffer;
+        if (buf != null) {
+            buf.put(offset(slot), (byte) 0);
+        }
+        if (nextFree < 0 || slot < nextFree) {
+            nextFree = slot;
+        }
+        removed.incrementAndGet();
+    }
+
+    private boolean isValid(MappedByteBuffer buf, int slot) {
+        int off = offset(slot);
+        for (int i = 0; i < CRC_OFFSET; i++) {
+            slotBuffer[i] = buf.get(off + i);
+        }
+        crc.reset();
+        crc.update(slotBuffer, 0, CRC_OFFSET);
+        return buf.getInt(off + CRC_OFFSET) == (int) crc.getValue();
+    }
+
+    /**
+     * Returns the ownId of an entry key: prefix, ownId and optional separator with dimension or value name
+     */
+    private static String ownIdOf(String key) {
+        int sep = key.indexOf(SEPARATOR, FRAME_PREFIX.length());
+        return sep < 0 ? key.substring(FRAME_PREFIX.length()) : key.substring(FRAME_PREFIX.length(), sep);
+    }
+
+    private int findFree(int from) {
+        MappedByteBuffer buf = buffer;
+        if (buf != null) {
+            for (int slot = from; slot < SLOTS; slot++) {
+                if (buf.get(offset(slot)) == 0) {
+                    return slot;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static String readValue(MappedByteBuffer buf, int slot) {
+        int off = offset(slot) + VALUE_OFFSET;
+        return read(buf, off + 1, Math.min(buf.get(off) & 0xFF, MAX_VALUE));
+    }
+
+    private static String read(MappedByteBuffer buf, int off, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = buf.get(off + i);
+        }
+        return new String(b, StandardCharsets.US_ASCII);
+    }
+}
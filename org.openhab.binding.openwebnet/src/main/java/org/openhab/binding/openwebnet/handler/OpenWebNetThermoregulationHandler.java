@@ -32,7 +32,6 @@ import org.eclipse.smarthome.core.thing.ThingTypeUID;
 import org.eclipse.smarthome.core.types.Command;
 import org.eclipse.smarthome.core.types.UnDefType;
 import org.openhab.binding.openwebnet.OpenWebNetBindingConstants;
-import org.openwebnet.OpenSession;
 import org.openwebnet.message.BaseOpenMessage;
 import org.openwebnet.message.OpenMessage;
 import org.openwebnet.message.Thermoregulation;
@@ -52,6 +51,9 @@ public class OpenWebNetThermoregulationHandler extends OpenWebNetThingHandler {
 
     private final Logger logger = LoggerFactory.getLogger(OpenWebNetThermoregulationHandler.class);
 
+    // name of the setpoint operation for learned address forms
+    private static final String OPERATION_SETPOINT = "setpoint";
+
     private enum Mode {
         // TODO make it a single map and integrate it with Thermoregulation.WHAT to have automatic translation
         UNKNOWN("UNKNOWN"),
@@ -112,7 +114,7 @@ public class OpenWebNetThermoregulationHandler extends OpenWebNetThingHandler {
     protected void requestChannelState(ChannelUID channel) {
         logger.debug("==OWN:ThermoHandler== requestChannelState() thingUID={} channel={}", thing.getUID(),
                 channel.getId());
-        bridgeHandler.gateway.send(Thermoregulation.requestStatus(deviceWhere));
+        bridgeHandler.requestStateAsync(Thermoregulation.requestStatus(deviceWhere));
     }
 
     @Override
@@ -150,14 +152,19 @@ public class OpenWebNetThermoregulationHandler extends OpenWebNetThingHandler {
             }
             // TODO check setPoint is inside OWN range (5-40) and check it's int or x.5 decimal, if not, round to
             // nearest x.0/x.5. Or better make it a control at lib level
-            OpenSession ses = bridgeHandler.gateway
-                    .send(Thermoregulation.requestWriteSetpoint(deviceWhere, value.floatValue()));
-            if (ses.getFinalResponse().getValue().equals(OpenMessage.NACK)) {
-                logger.debug("=OWN:ThermoHandler== Failed sending Setpoint command with WHERE=N");
-                // using WHERE=N fails, let'use zone by central unit WHERE=#N
-                bridgeHandler.gateway
-                        .send(Thermoregulation.requestWriteSetpoint("#" + deviceWhere, value.floatValue()));
-            }
+            final float setpoint = value.floatValue();
+            // some zones accept setpoint only with WHERE=N, other only by central unit with WHERE=#N: the accepted
+            // form is learned so that next commands need a single frame
+            sendLearned(OPERATION_SETPOINT, Thermoregulation.requestWriteSetpoint(deviceWhere, setpoint),
+                    Thermoregulation.requestWriteSetpoint("#" + deviceWhere, setpoint)).whenComplete((response, e) -> {
+                        if (e != null) {
+                            logger.warn("==OWN:ThermoHandler== Setpoint command for thing {} failed: {}",
+                                    getThing().getUID(), e.getMessage());
+                        } else if (OpenMessage.NACK.equals(response.getValue())) {
+                            logger.warn("==OWN:ThermoHandler== Setpoint command for thing {} refused by gateway",
+                                    getThing().getUID());
+                        }
+                    });
             // NOT NEEDED ----- updateState(CHANNEL_TEMP_SETPOINT, (DecimalType) command);
         } else {
             logger.warn("==OWN:ThermoHandler== Cannot handle command {} for thing {}", command, getThing().getUID());
@@ -179,7 +186,7 @@ public class OpenWebNetThermoregulationHandler extends OpenWebNetThingHandler {
             }
             logger.debug("==OWN:ThermoHandler== handleModeCommand() modeWhat={}", modeWhat);
             if (modeWhat != null) {
-                bridgeHandler.gateway.send(Thermoregulation.requestSetMode("#" + deviceWhere, modeWhat));
+                bridgeHandler.sendAsync(Thermoregulation.requestSetMode("#" + deviceWhere, modeWhat));
             } else {
                 logger.warn("==OWN:ThermoHandler== Cannot handle command {} for thing {}", command,
                         getThing().getUID());
@@ -15,14 +15,18 @@ package org.openhab.binding.openwebnet.handler;
 import static org.openhab.binding.openwebnet.OpenWebNetBindingConstants.*;
 
 import java.math.BigDecimal;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import javax.measure.Quantity;
 import javax.measure.Unit;
 
+import org.eclipse.smarthome.core.library.types.DecimalType;
 import org.eclipse.smarthome.core.library.types.QuantityType;
 import org.eclipse.smarthome.core.thing.Bridge;
+import org.eclipse.smarthome.core.thing.Channel;
 import org.eclipse.smarthome.core.thing.ChannelUID;
 import org.eclipse.smarthome.core.thing.Thing;
 import org.eclipse.smarthome.core.thing.ThingStatus;
@@ -30,7 +34,9 @@ import org.eclipse.smarthome.core.thing.ThingStatusDetail;
 import org.eclipse.smarthome.core.thing.binding.BaseThingHandler;
 import org.eclipse.smarthome.core.types.Command;
 import org.eclipse.smarthome.core.types.RefreshType;
+import org.eclipse.smarthome.core.types.State;
 import org.openwebnet.message.BaseOpenMessage;
+import org.openwebnet.message.OpenMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,6 +55,14 @@ public abstract class OpenWebNetThingHandler extends BaseThingHandler {
     protected OpenWebNetBridgeHandler bridgeHandler;
     protected String ownId; // OpenWebNet identifier for this device: WHO.WHERE
     protected String deviceWhere; // this device WHERE address
+    // latest-wins coalescing of value commands (Percent, Quantity, Decimal) per channel
+    private OpenWebNetCommandCoalescer coalescer;
+    // true while the state is restored from the bridge state snapshot
+    private volatile boolean restoringState;
+    // pending timeout of state requests: one for all channels refreshed together
+    private OpenWebNetTimerService.Timeout stateRequestTimeout;
+    // slot of this device in the bridge shadow state, assigned when the device is registered
+    int shadowSlot = OpenWebNetShadowState.NO_SLOT;
 
     public OpenWebNetThingHandler(Thing thing) {
         super(thing);
@@ -60,6 +74,7 @@ public abstract class OpenWebNetThingHandler extends BaseThingHandler {
         Bridge bridge = getBridge();
         if (bridge != null && bridge.getHandler() != null) {
             bridgeHandler = (OpenWebNetBridgeHandler) bridge.getHandler();
+            coalescer = new OpenWebNetCommandCoalescer(this::handleChannelCommand, bridgeHandler);
             if (getConfig().get(CONFIG_PROPERTY_WHERE) == null) {
                 logger.warn("==OWN:ThingHandler== WHERE parameter in configuration is null or invalid for thing {}",
                         thing.getUID());
@@ -74,6 +89,8 @@ public abstract class OpenWebNetThingHandler extends BaseThingHandler {
             Map<String, String> properties = editProperties();
             properties.put(PROPERTY_OWNID, ownId);
             updateProperties(properties);
+            // address forms learned before restart
+            bridgeHandler.getAddressFormCache().load(ownId, deviceWhere, properties.get(PROPERTY_ADDRESS_FORMS));
 
             bridgeHandler.registerDevice(ownId, this);
             logger.debug("==OWN:ThingHandler== associated thing to bridge with ownId={}", ownId);
@@ -101,33 +118,162 @@ public abstract class OpenWebNetThingHandler extends BaseThingHandler {
                     getThing().getUID());
             return;
         }
+        // the item state may now differ from the last published one: by autoupdate of a command, or because it has
+        // no state yet (refresh, e.g. just linked). Publish the next state also if not changed
+        bridgeHandler.getShadowState().invalidate(shadowSlot, channel.getId());
         if (!bridgeHandler.gateway.isConnected()) {
             logger.warn("==OWN:ThingHandler== Gateway is NOT connected, setting thing={} to OFFLINE", thing.getUID());
             updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.BRIDGE_OFFLINE);
             return;
         }
         if (command instanceof RefreshType) {
+            if (bridgeHandler.isStateResyncActive()) {
+                logger.debug("==OWN:ThingHandler== State resync in progress, channel {} will be refreshed by it",
+                        channel);
+                return;
+            }
+            if (bridgeHandler.isStartupInProgress()) {
+                // the state request timeout starts when the device is actually refreshed
+                logger.debug("==OWN:ThingHandler== Startup in progress, queuing refresh of thing {}", thing.getUID());
+                bridgeHandler.refreshDevicePaced(this);
+                return;
+            }
             logger.debug("==OWN:ThingHandler== Refreshing channel {}", channel);
             // TODO move to a refreshChannel() method that subclasses can implement to disable setting the thing offline
             requestChannelState(channel);
-            // set a schedule to put device OFFLINE if no answer is received after THING_STATE_REQ_TIMEOUT
-            scheduler.schedule(() -> {
-                // if state is still unknown after timer ends, set the thing OFFLINE
-                if (thing.getStatus().equals(ThingStatus.UNKNOWN)) {
-                    logger.info(
-                            "==OWN:ThingHandler== Thing state request timer expired, still unknown. Setting thing={} to OFFLINE",
-                            thing.getUID());
-                    updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
-                            "Could not get channel state");
-                    logger.debug("==OWN:ThingHandler== Thing OFFLINE");
-                }
-            }, THING_STATE_REQ_TIMEOUT, TimeUnit.SECONDS);
+            scheduleStateRequestTimeout();
             return;
+        } else if (coalescer != null && (command instanceof DecimalType || command instanceof QuantityType)) {
+            // value commands (e.g. from sliders) may come in bursts: only the latest one is sent
+            coalescer.submit(channel, command);
         } else {
+            if (coalescer != null) { // e.g. OFF after a slider burst: the pending value must not be sent after it
+                coalescer.supersede(channel);
+            }
             handleChannelCommand(channel, command);
         }
     }
 
+    /**
+     * Request the state of this device, e.g. when it did not answer a bridge state resync. By default the state of the
+     * first channel is requested: all channels of a device get their state from the same status frame.
+     */
+    protected void refreshDevice() {
+        List<Channel> channels = thing.getChannels();
+        if (!channels.isEmpty()) {
+            requestChannelState(channels.get(0).getUID());
+            scheduleStateRequestTimeout();
+        }
+    }
+
+    /**
+     * Returns true if at least one channel of this thing is linked to an item
+     */
+    boolean hasLinkedChannels() {
+        for (Channel channel : thing.getChannels()) {
+            if (isLinked(channel.getUID())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set a schedule to put device OFFLINE if no answer is received after THING_STATE_REQ_TIMEOUT
+     */
+    protected void scheduleStateRequestTimeout() {
+        OpenWebNetTimerService.Timeout pending = stateRequestTimeout;
+        if (pending != null && !pending.isDone()) {
+            return;
+        }
+        stateRequestTimeout = bridgeHandler.getTimers().schedule(() -> {
+            // if state is still unknown after timer ends, set the thing OFFLINE
+            if (thing.getStatus().equals(ThingStatus.UNKNOWN)) {
+                logger.info(
+                        "==OWN:ThingHandler== Thing state request timer expired, still unknown. Setting thing={} to OFFLINE",
+                        thing.getUID());
+                updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
+                        "Could not get channel state");
+                logger.debug("==OWN:ThingHandler== Thing OFFLINE");
+            }
+        }, TimeUnit.SECONDS.toMillis(THING_STATE_REQ_TIMEOUT));
+    }
+
+    /**
+     * Send a command to the gateway for this device. If called while handling a channel command, the channel is
+     * considered in flight until the gateway answers (see {@link OpenWebNetCommandCoalescer})
+     *
+     * @param msg the command to send
+     * @return a future completed with the gateway response (ACK/NACK)
+     */
+    protected CompletableFuture<OpenMessage> send(OpenMessage msg) {
+        return OpenWebNetCommandCoalescer.track(bridgeHandler.sendAsync(msg));
+    }
+
+    /**
+     * Send a command that can be addressed to this device in more than one form (e.g. WHERE=N or WHERE=#N). The form
+     * already accepted by the gateway for this device and operation is tried first, then the other forms in order
+     * until one is not answered with NACK. The accepted form is saved as a thing property.
+     *
+     * @param operation name of the operation (e.g. "setpoint")
+     * @param variants  the command in each possible form, in the order to try them when nothing has been learned
+     * @return a future completed with the gateway response (ACK, or NACK if no form was accepted)
+     */
+    protected CompletableFuture<OpenMessage> sendLearned(String operation, OpenMessage... variants) {
+        int learned = bridgeHandler.getAddressFormCache().get(ownId, operation);
+        int[] order = new int[variants.length];
+        int n = 0;
+        if (learned >= 0 && learned < variants.length) {
+            order[n++] = learned;
+        }
+        for (int i = 0; i < variants.length; i++) {
+            if (i != learned) {
+                order[n++] = i;
+            }
+        }
+        return trackInFlight(sendVariant(operation, variants, order, 0));
+    }
+
+    private CompletableFuture<OpenMessage> sendVariant(String operation, OpenMessage[] variants, int[] order,
+            int attempt) {
+        OpenWebNetAddressFormCache cache = bridgeHandler.getAddressFormCache();
+        int index = order[attempt];
+        return bridgeHandler.sendAsync(variants[index]).thenCompose(response -> {
+            if (!OpenMessage.NACK.equals(response.getValue())) {
+                if (cache.learn(ownId, operation, index, attempt + 1)) {
+                    saveAddressForms();
+                }
+                return CompletableFuture.completedFuture(response);
+            }
+            if (attempt + 1 < order.length) {
+                logger.debug("==OWN:ThingHandler== {} for thing {} refused with NACK, trying {}", variants[index],
+                        thing.getUID(), variants[order[attempt + 1]]);
+                return sendVariant(operation, variants, order, attempt + 1);
+            }
+            cache.reject(ownId, operation);
+            saveAddressForms();
+            return CompletableFuture.completedFuture(response);
+        });
+    }
+
+    private void saveAddressForms() {
+        Map<String, String> properties = editProperties();
+        String encoded = bridgeHandler.getAddressFormCache().encode(ownId, deviceWhere);
+        if (encoded == null) {
+            properties.remove(PROPERTY_ADDRESS_FORMS);
+        } else {
+            properties.put(PROPERTY_ADDRESS_FORMS, encoded);
+        }
+        updateProperties(properties);
+    }
+
+    /**
+     * Mark the channel command being handled as in flight until the given future completes
+     */
+    protected <T> CompletableFuture<T> trackInFlight(CompletableFuture<T> future) {
+        return OpenWebNetCommandCoalescer.track(future);
+    }
+
     /**
      * Handles a command for the specific channel for this thing.
      * It must be implemented by each specific OpenWebNet category of device (WHO), based on channel
@@ -146,6 +292,9 @@ public abstract class OpenWebNetThingHandler extends BaseThingHandler {
     protected void handleMessage(BaseOpenMessage msg) {
         // logger.debug("==OWN:ThingHandler== handleMessage() for thing: {}", getThing().getUID());
         // update status to ONLINE if not already online
+        if (restoringState || bridgeHandler.getShadowState().isOnline(shadowSlot)) {
+            return;
+        }
         ThingStatus ts = getThing().getStatus();
         // logger.debug("(((((((((((((((((((((((((((((((((((((((((((((( ThingStatus = {}", ts);
         if (ThingStatus.ONLINE != ts && ThingStatus.REMOVING != ts && ThingStatus.REMOVED != ts) {
@@ -153,6 +302,57 @@ public abstract class OpenWebNetThingHandler extends BaseThingHandler {
         }
     }
 
+    /**
+     * Publishes the state of a channel only if it changed since it was last published (see
+     * {@link OpenWebNetShadowState})
+     */
+    @Override
+    protected void updateState(ChannelUID channelUID, State state) {
+        if (bridgeHandler != null && publishesChangesOnly()
+                && !bridgeHandler.getShadowState().update(shadowSlot, channelUID.getId(), state)) {
+            return;
+        }
+        super.updateState(channelUID, state);
+    }
+
+    @Override
+    protected void updateStatus(ThingStatus status, ThingStatusDetail statusDetail, String description) {
+        if (bridgeHandler != null) {
+            bridgeHandler.getShadowState().setOnline(shadowSlot, status == ThingStatus.ONLINE);
+        }
+        super.updateStatus(status, statusDetail, description);
+    }
+
+    /**
+     * Returns true if channel states should be published only when changed. Handlers publishing events as states
+     * (e.g. button pressures) should return false.
+     */
+    protected boolean publishesChangesOnly() {
+        return true;
+    }
+
+    /**
+     * Restore the last known state of this device from a frame stored in the bridge state snapshot. The thing status
+     * is not changed: the device is not known to be reachable yet.
+     *
+     * @param msg the last state frame received for this device
+     */
+    void restoreState(BaseOpenMessage msg) {
+        restoringState = true;
+        try {
+            handleMessage(msg);
+        } finally {
+            restoringState = false;
+        }
+    }
+
+    /**
+     * Returns true if the message being handled comes from the state snapshot and not from the BUS
+     */
+    protected boolean isRestoringState() {
+        return restoringState;
+    }
+
     /**
      * Request to gateway state for thing channel. It must be implemented by each specific OpenWebNet category of device
      * (WHO)
@@ -161,20 +361,37 @@ public abstract class OpenWebNetThingHandler extends BaseThingHandler {
      */
     protected abstract void requestChannelState(ChannelUID channel);
 
-    /*
-     * @Override
-     * public void handleRemoval() {
-     * logger.debug("==OWN:ThingHandler== handleRemoval() for {}", getThing().getUID());
-     * if (bridgeHandler != null) {
-     * bridgeHandler.unregisterDevice(ownId);
-     * }
-     * super.handleRemoval();
-     * }
-     */
+    @Override
+    public void handleRemoval() {
+        logger.debug("==OWN:ThingHandler== handleRemoval() for {}", getThing().getUID());
+        if (bridgeHandler != null && ownId != null) {
+            bridgeHandler.forgetDevice(ownId);
+        }
+        super.handleRemoval();
+    }
+
+    @Override
+    public void handleConfigurationUpdate(Map<String, Object> configurationParameters) {
+        // device address may have changed: forget learned address forms
+        if (bridgeHandler != null && ownId != null) {
+            bridgeHandler.getAddressFormCache().invalidate(ownId);
+            Map<String, String> properties = editProperties();
+            properties.remove(PROPERTY_ADDRESS_FORMS);
+            updateProperties(properties);
+        }
+        super.handleConfigurationUpdate(configurationParameters);
+    }
 
     @Override
     public void dispose() {
         logger.debug("==OWN:ThingHandler== dispose() for {}", getThing().getUID());
+        if (coalescer != null) {
+            coalescer.clear();
+        }
+        OpenWebNetTimerService.Timeout pending = stateRequestTimeout;
+        if (pending != null) {
+            pending.cancel();
+        }
         if (bridgeHandler != null) {
             bridgeHandler.unregisterDevice(ownId);
         }
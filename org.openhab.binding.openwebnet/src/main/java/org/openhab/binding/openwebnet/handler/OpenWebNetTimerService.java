@@ -0,0 +1,280 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetTimerService} is a hashed wheel timer for the short, frequent timers of the binding (state
+ * request timeouts, UNDEF/RELEASED state updates, shutter STOPs and positions, command windows, state resync, energy
+ * subscriptions renewals). Scheduling and cancelling a timer
+ * are O(1) and do not use the openHAB shared scheduler: timers are run by a single thread owned by the bridge, with a
+ * resolution of {@link #TICK_MS}. Timer tasks must be short and must not block.
+ * <p>
+ * The thread is started by {@link #start()} and stopped by {@link #shutdown()}, at each initialization and disposal of
+ * the bridge. Timers pending when the service is stopped, or scheduled while it is stopped, are kept and run (late, if
+ * their deadline has passed) when it is started again, so that components waiting for a timer are not left stuck
+ * after a bridge configuration change. Each thread has its own wheel: a thread still running a task when the service
+ * is started again hands its timers over to the new thread when it ends.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetTimerService {
+
+    private final Logger logger = LoggerFactory.getLogger(OpenWebNetTimerService.class);
+
+    static final long TICK_MS = 10;
+    private static final int WHEEL_SIZE = 512; // must be a power of 2: ~5s per round with 10ms ticks
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MS);
+
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final String name;
+    private volatile @Nullable Thread thread; // written under lock
+    private volatile boolean running;
+
+    // statistics
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private volatile long totalLagNanos;
+    private volatile long maxLagNanos;
+    private volatile long ticks;
+
+    /**
+     * @param name name of the timer thread
+     */
+    OpenWebNetTimerService(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Start the timer thread, if not running
+     */
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        Thread previous = thread;
+        if (previous != null) { // let the previous thread hand its timers over, so that they run in order
+            try {
+                previous.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (previous.isAlive()) {
+                logger.warn("==OWN:Timer== previous timer thread still running a task, its timers will be run later");
+            }
+        }
+        running = true;
+        Thread t = new Thread(() -> run(new Wheel()), name);
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Schedule a task
+     *
+     * @param task    the task to run
+     * @param delayMs delay (ms)
+     * @return the timer, that can be cancelled
+     */
+    Timeout schedule(Runnable task, long delayMs) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs)));
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Cancel a timer (if not null) and schedule its task again
+     *
+     * @return the new timer
+     */
+    Timeout reschedule(@Nullable Timeout timeout, Runnable task, long delayMs) {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        return schedule(task, delayMs);
+    }
+
+    /**
+     * Stop the timer thread. Pending timers are kept, and run when the service is started again.
+     */
+    synchronized void shutdown() {
+        running = false;
+        Thread t = thread;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Returns a human readable summary of timer statistics
+     */
+    String getStatistics() {
+        long t = ticks;
+        return String.format("pending=%d executed=%d cancelled=%d avgTickLag=%.1fms maxTickLag=%.1fms", pending.get(),
+                executed.get(), cancelled.get(), t == 0 ? 0.0 : totalLagNanos / 1e6 / t, maxLagNanos / 1e6);
+    }
+
+    private void run(Wheel wheel) {
+        wheel.startNanos = System.nanoTime();
+        while (running && thread == Thread.currentThread()) {
+            long deadline = wheel.startNanos + (wheel.tick + 1) * TICK_NANOS;
+            long sleepNanos = deadline - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    continue; // shutdown
+                }
+            }
+            long lag = Math.max(0, System.nanoTime() - deadline);
+            totalLagNanos += lag;
+            if (lag > maxLagNanos) {
+                maxLagNanos = lag;
+            }
+            ticks++;
+            transferAdded(wheel);
+            expire(wheel.buckets, (int) (wheel.tick & (WHEEL_SIZE - 1)));
+            wheel.tick++;
+        }
+        // timers left in the wheel are placed again from their deadline by the next thread
+        for (int bucket = 0; bucket < WHEEL_SIZE; bucket++) {
+            Timeout timeout = wheel.buckets[bucket];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.next = null;
+                added.add(timeout);
+                timeout = next;
+            }
+            wheel.buckets[bucket] = null;
+        }
+    }
+
+    /** move newly added timers to their bucket */
+    private void transferAdded(Wheel wheel) {
+        long tick = wheel.tick;
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state.get() != Timeout.PENDING) {
+                continue;
+            }
+            long expireTick = Math.max(tick,
+                    (timeout.deadlineNanos - wheel.startNanos + TICK_NANOS - 1) / TICK_NANOS - 1);
+            timeout.remainingRounds = (expireTick - tick) / WHEEL_SIZE;
+            int bucket = (int) (expireTick & (WHEEL_SIZE - 1));
+            timeout.next = wheel.buckets[bucket];
+            wheel.buckets[bucket] = timeout;
+        }
+    }
+
+    /** run expired timers of a bucket, removing cancelled ones */
+    private void expire(Timeout[] buckets, int bucket) {
+        Timeout previous = null;
+        Timeout timeout = buckets[bucket];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            boolean remove;
+            if (timeout.state.get() != Timeout.PENDING) {
+                remove = true;
+            } else if (timeout.remainingRounds <= 0) {
+                remove = true;
+                if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                    pending.decrementAndGet();
+                    executed.incrementAndGet();
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        logger.warn("==OWN:Timer== exception running timer task: {}", e.getMessage());
+                    }
+                }
+            } else {
+                remove = false;
+                timeout.remainingRounds--;
+            }
+            if (remove) {
+                if (previous == null) {
+                    buckets[bucket] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+            } else {
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * The buckets and the current tick of a timer thread, only used by that thread
+     */
+    private static final class Wheel {
+        private final @Nullable Timeout[] buckets = new Timeout[WHEEL_SIZE];
+        private long startNanos;
+        private long tick;
+    }
+
+    /**
+     * A scheduled task
+     */
+    final class Timeout {
+        private static final int PENDING = 0;
+        private static final int EXPIRED = 1;
+        private static final int CANCELLED = 2;
+
+        private final Runnable task;
+        private final long deadlineNanos;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long remainingRounds; // only used by the timer thread
+        private @Nullable Timeout next; // only used by the timer thread
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Cancel this timer, if not expired yet
+         *
+         * @return true if the timer was cancelled
+         */
+        boolean cancel() {
+            if (state.compareAndSet(PENDING, CANCELLED)) {
+                pending.decrementAndGet();
+                cancelled.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Returns true if the timer expired or was cancelled
+         */
+        boolean isDone() {
+            return state.get() != PENDING;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.LongPredicate;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openwebnet.message.BaseOpenMessage;
+import org.openwebnet.message.Who;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link OpenWebNetTopology} maps Lighting and Automation AREA, GROUP and GENERAL addresses (also in the local
+ * bus form <code>...#4#II</code>) to the registered point-to-point devices they act on, so that a single received
+ * AREA/GROUP/GENERAL frame can update all member devices without sending status requests on the BUS.
+ * <p>
+ * Area membership is derived from the point-to-point WHERE (A/PL address); group membership comes from the optional
+ * <code>groups</code> thing configuration parameter.
+ * <p>
+ * Members are only the devices configured in openHAB: the BUS may have other devices in the same area, group or
+ * general. Groups that the user declares complete (all their BUS devices are configured, see
+ * {@link #setCompleteGroups(String)}) are the only targets that can replace point-to-point commands.
+ * Like {@link OpenWebNetRoutingIndex}, the index is immutable and replaced on each (rare) register/unregister, so
+ * lookups from the gateway reader thread are lock-free.
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+@NonNullByDefault
+final class OpenWebNetTopology {
+
+    private static final Logger logger = LoggerFactory.getLogger(OpenWebNetTopology.class);
+
+    static final long NO_KEY = -1;
+
+    // target kinds
+    private static final int AREA = 1;
+    private static final int GROUP = 2;
+    private static final int GENERAL = 3;
+
+    private static final int MAIN_BUS = 0;
+    private static final int ALL_BUSES = 0xFFFF; // GENERAL on main bus acts on all devices
+    private static final int MAX_GROUP = 255;
+    private static final long WHERE_MASK = (1L << 40) - 1; // key without WHO
+
+    private static final int LIGHTING_WHO = Who.LIGHTING.value();
+    private static final int AUTOMATION_WHO = Who.AUTOMATION.value();
+
+    // keys of the targets each registered device is member of
+    private final Map<OpenWebNetThingHandler, long[]> memberships = new IdentityHashMap<>();
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    // keys (without WHO) of the groups declared complete by the user, sorted
+    private volatile long[] completeGroups = new long[0];
+
+    /**
+     * Add a point-to-point Lighting/Automation device as member of its area, of general and of the given groups.
+     * Other devices are ignored.
+     *
+     * @param handler the device handler
+     * @param who     device WHO
+     * @param where   device WHERE (point-to-point, optionally on local bus)
+     * @param groups  comma separated list of groups (1-255) the device belongs to, or null
+     * @return true if the device was added
+     */
+    synchronized boolean add(OpenWebNetThingHandler handler, int who, String where, @Nullable String groups) {
+        if (who != LIGHTING_WHO && who != AUTOMATION_WHO) {
+            return false;
+        }
+        int end = localBusIndex(where, 0, where.length());
+        int bus = MAIN_BUS;
+        if (end >= 0) {
+            bus = parseBus(where, end + 3, where.length());
+        } else {
+            end = where.length();
+        }
+        int area = pointArea(where, 0, end);
+        if (area < 0 || bus < 0) {
+            return false;
+        }
+        List<Long> keys = new ArrayList<>();
+        keys.add(key(who, AREA, bus, area));
+        keys.add(key(who, GENERAL, ALL_BUSES, 0));
+        if (bus != MAIN_BUS) {
+            keys.add(key(who, GENERAL, bus, 0));
+        }
+        if (groups != null) {
+            for (String g : groups.split(",")) {
+                String gt = g.trim();
+                if (gt.isEmpty()) {
+                    continue;
+                }
+                try {
+                    int group = Integer.parseInt(gt);
+                    if (group < 1 || group > MAX_GROUP) {
+                        throw new NumberFormatException();
+                    }
+                    keys.add(key(who, GROUP, bus, group));
+                } catch (NumberFormatException e) {
+                    logger.warn("==OWN:Topology== invalid group '{}' for device WHERE={}, ignoring it", gt, where);
+                }
+            }
+        }
+        long[] k = new long[keys.size()];
+        for (int i = 0; i < k.length; i++) {
+            k[i] = keys.get(i);
+        }
+        memberships.put(handler, k);
+        rebuild();
+        return true;
+    }
+
+    /**
+     * Remove a device from all areas/groups
+     */
+    synchronized void remove(OpenWebNetThingHandler handler) {
+        if (memberships.remove(handler) != null) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Declare the groups whose BUS devices are all configured in openHAB, with the group in their <code>groups</code>
+     * parameter
+     *
+     * @param groups comma separated list of groups: <code>G</code> (1-255) or <code>G#4#II</code> on local bus, or
+     *            null
+     */
+    void setCompleteGroups(@Nullable String groups) {
+        List<Long> keys = new ArrayList<>();
+        if (groups != null) {
+            for (String g : groups.split(",")) {
+                String gt = g.trim();
+                if (gt.isEmpty()) {
+                    continue;
+                }
+                String where = "#" + gt;
+                long key = targetKey(LIGHTING_WHO, where, 0, where.length());
+                if (key == NO_KEY || targetType(key) != BaseOpenMessage.Type.GROUP) {
+                    logger.warn("==OWN:Topology== invalid complete group '{}', ignoring it", gt);
+                    continue;
+                }
+                keys.add(key & WHERE_MASK);
+            }
+        }
+        long[] k = new long[keys.size()];
+        for (int i = 0; i < k.length; i++) {
+            k[i] = keys.get(i);
+        }
+        Arrays.sort(k);
+        completeGroups = k;
+    }
+
+    /**
+     * Returns true if the target is a group declared complete (see {@link #setCompleteGroups(String)}): a command for
+     * the target only acts on its registered members
+     */
+    boolean isComplete(long key) {
+        return Arrays.binarySearch(completeGroups, key & WHERE_MASK) >= 0;
+    }
+
+    synchronized void clear() {
+        memberships.clear();
+        snapshot = Snapshot.EMPTY;
+    }
+
+    /**
+     * Returns the member devices of the AREA/GROUP/GENERAL address of a received message, or null if the message is not
+     * addressed to an area/group/general or the target has no registered members
+     */
+    OpenWebNetThingHandler @Nullable [] members(BaseOpenMessage msg) {
+        String where = msg.getWhere();
+        if (where == null) {
+            return null;
+        }
+        long key = targetKey(msg.getWho().value(), where, 0, where.length());
+        return key == NO_KEY ? null : snapshot.get(key);
+    }
+
+    /**
+     * Returns true if the WHERE in chars [from, to) of a raw frame is an AREA/GROUP/GENERAL address with registered
+     * members
+     */
+    boolean hasMembers(int who, String frame, int from, int to) {
+        long key = targetKey(who, frame, from, to);
+        return key != NO_KEY && snapshot.get(key) != null;
+    }
+
+    /**
+     * Returns true if the message is a Lighting/Automation message addressed to an AREA, GROUP or GENERAL
+     */
+    static boolean isMultipleTarget(BaseOpenMessage msg) {
+        String where = msg.getWhere();
+        return where != null && targetKey(msg.getWho().value(), where, 0, where.length()) != NO_KEY;
+    }
+
+    /**
+     * Returns the key of the AREA/GROUP/GENERAL target in WHERE chars [from, to), or {@link #NO_KEY} if the WHERE is a
+     * point-to-point or invalid address or WHO is not Lighting/Automation.
+     * <ul>
+     * <li>GENERAL: <code>0</code>, <code>0#4#II</code></li>
+     * <li>AREA: <code>00</code>, <code>1</code>-<code>9</code>, <code>10</code> or <code>100</code>, <code>A#4#II</code></li>
+     * <li>GROUP: <code>#G</code>, <code>#G#4#II</code> (G=1-255)</li>
+     * </ul>
+     */
+    static long targetKey(int who, CharSequence s, int from, int to) {
+        if ((who != LIGHTING_WHO && who != AUTOMATION_WHO) || to <= from) {
+            return NO_KEY;
+        }
+        int end = localBusIndex(s, from, to);
+        int bus = MAIN_BUS;
+        if (end >= 0) {
+            bus = parseBus(s, end + 3, to);
+            if (bus < 0) {
+                return NO_KEY;
+            }
+        } else {
+            end = to;
+        }
+        int len = end - from;
+        char c0 = s.charAt(from);
+        if (c0 == '#') {
+            int group = parseDigits(s, from + 1, end);
+            return group >= 1 && group <= MAX_GROUP ? key(who, GROUP, bus, group) : NO_KEY;
+        }
+        int n = parseDigits(s, from, end);
+        if (n < 0) {
+            return NO_KEY;
+        }
+        if (len == 1) {
+            return n == 0 ? key(who, GENERAL, bus == MAIN_BUS ? ALL_BUSES : bus, 0) : key(who, AREA, bus, n);
+        } else if (len == 2 && (n == 0 || n == 10)) { // area 00 and 10
+            return key(who, AREA, bus, n);
+        } else if (len == 3 && n == 100) { // area 10
+            return key(who, AREA, bus, 10);
+        }
+        return NO_KEY;
+    }
+
+    /**
+     * Returns the keys of the targets (area, groups, general) a device is member of, or an empty array
+     */
+    synchronized long[] targetKeys(OpenWebNetThingHandler handler) {
+        long[] keys = memberships.get(handler);
+        return keys == null ? new long[0] : keys;
+    }
+
+    /**
+     * Returns the members of a target, or null if it has no members
+     */
+    OpenWebNetThingHandler @Nullable [] members(long key) {
+        return snapshot.get(key);
+    }
+
+    /**
+     * Returns the number of members of a target
+     */
+    int membersCount(long key) {
+        OpenWebNetThingHandler[] members = snapshot.get(key);
+        return members == null ? 0 : members.length;
+    }
+
+    /**
+     * Returns the targets the devices are member of and accepted by the filter, without duplicates and largest targets
+     * (most members) first, so that the first target frames replace the most point-to-point frames
+     *
+     * @param devices the devices
+     * @param filter  accepts the target keys to return
+     */
+    List<Long> candidateTargets(Collection<? extends OpenWebNetThingHandler> devices, LongPredicate filter) {
+        Snapshot s = snapshot;
+        Set<Long> keys = new LinkedHashSet<>();
+        for (OpenWebNetThingHandler device : devices) {
+            for (long key : targetKeys(device)) {
+                if (filter.test(key)) {
+                    keys.add(key);
+                }
+            }
+        }
+        List<Long> candidates = new ArrayList<>(keys);
+        candidates.sort((k1, k2) -> Integer.compare(s.count(k2), s.count(k1)));
+        return candidates;
+    }
+
+    static int targetWho(long key) {
+        return (int) (key >>> 40);
+    }
+
+    /**
+     * Returns the address type of a target key (AREA, GROUP or GENERAL)
+     */
+    static BaseOpenMessage.Type targetType(long key) {
+        switch ((int) (key >>> 36) & 0xF) {
+            case AREA:
+                return BaseOpenMessage.Type.AREA;
+            case GROUP:
+                return BaseOpenMessage.Type.GROUP;
+            default:
+                return BaseOpenMessage.Type.GENERAL;
+        }
+    }
+
+    /**
+     * Returns true if the target is on a local bus (WHERE in the form <code>...#4#II</code>)
+     */
+    static boolean isLocalBusTarget(long key) {
+        int bus = (int) (key >>> 16) & 0xFFFF;
+        return bus != MAIN_BUS && bus != ALL_BUSES;
+    }
+
+    /**
+     * Returns the WHERE of a target key, without the leading <code>#</code> for groups (e.g. area 10 --> 100,
+     * group 5 on local bus 01 --> 5#4#01)
+     */
+    static String targetWhere(long key) {
+        int kind = (int) (key >>> 36) & 0xF;
+        int bus = (int) (key >>> 16) & 0xFFFF;
+        int num = (int) (key & 0xFFFF);
+        String where;
+        if (kind == GENERAL) {
+            where = "0";
+        } else if (kind == AREA) {
+            where = num == 0 ? "00" : num == 10 ? "100" : Integer.toString(num);
+        } else {
+            where = Integer.toString(num);
+        }
+        if (bus != MAIN_BUS && bus != ALL_BUSES) {
+            where = where + "#4#" + (bus - 1 < 10 ? "0" : "") + (bus - 1);
+        }
+        return where;
+    }
+
+    /**
+     * Returns the area of a point-to-point A/PL address in chars [from, to), or -1 if it is not a point-to-point
+     * address. Valid forms: AP (A=0-9, P=1-9), 0APP (A=1-9, PP=01-15), 10PP (PP=01-15)
+     */
+    private static int pointArea(CharSequence s, int from, int to) {
+        int len = to - from;
+        int n = parseDigits(s, from, to);
+        if (n < 0) {
+            return -1;
+        }
+        if (len == 2) {
+            return (n % 10 == 0) ? -1 : n / 10;
+        } else if (len == 4) {
+            int a = n / 100;
+            int pl = n % 100;
+            return (a >= 1 && a <= 10 && pl >= 1 && pl <= 15) ? a : -1;
+        }
+        return -1;
+    }
+
+    /** index of "#4#" in [from, to) after the first char, or -1 */
+    private static int localBusIndex(CharSequence s, int from, int to) {
+        for (int i = from + 1; i + 2 < to; i++) {
+            if (s.charAt(i) == '#' && s.charAt(i + 1) == '4' && s.charAt(i + 2) == '#') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** local bus interface II (01-15) -> bus id (> MAIN_BUS), or -1 */
+    private static int parseBus(CharSequence s, int from, int to) {
+        int n = parseDigits(s, from, to);
+        return (n < 0 || to - from != 2) ? -1 : n + 1;
+    }
+
+    /** parses up to 4 digits in [from, to), returns -1 if empty, too long or not digits */
+    private static int parseDigits(CharSequence s, int from, int to) {
+        if (to <= from || to - from > 4) {
+            return -1;
+        }
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    private static long key(int who, int kind, int bus, int num) {
+        return ((long) who << 40) | ((long) kind << 36) | ((long) bus << 16) | num;
+    }
+
+    private void rebuild() {
+        TreeMap<Long, List<OpenWebNetThingHandler>> targets = new TreeMap<>();
+        for (Map.Entry<OpenWebNetThingHandler, long[]> e : memberships.entrySet()) {
+            for (long k : e.getValue()) {
+                targets.computeIfAbsent(k, x -> new ArrayList<>()).add(e.getKey());
+            }
+        }
+        long[] keys = new long[targets.size()];
+        OpenWebNetThingHandler[][] members = new OpenWebNetThingHandler[keys.length][];
+        int i = 0;
+        for (Map.Entry<Long, List<OpenWebNetThingHandler>> t : targets.entrySet()) {
+            keys[i] = t.getKey();
+            members[i] = t.getValue().toArray(new OpenWebNetThingHandler[0]);
+            i++;
+        }
+        snapshot = new Snapshot(keys, members);
+    }
+
+    /**
+     * Immutable sorted target key -> members table
+     */
+    private static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(new long[0], new OpenWebNetThingHandler[0][]);
+
+        private final long[] keys;
+        private final OpenWebNetThingHandler[][] members;
+
+        private Snapshot(long[] keys, OpenWebNetThingHandler[][] members) {
+            this.keys = keys;
+            this.members = members;
+        }
+
+        OpenWebNetThingHandler @Nullable [] get(long key) {
+            int i = Arrays.binarySearch(keys, key);
+            return i < 0 ? null : members[i];
+        }
+
+        int count(long key) {
+            int i = Arrays.binarySearch(keys, key);
+            return i < 0 ? 0 : members[i].length;
+        }
+    }
+}
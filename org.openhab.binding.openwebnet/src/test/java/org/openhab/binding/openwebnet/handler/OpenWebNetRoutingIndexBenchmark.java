@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.openwebnet.handler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.smarthome.core.thing.Thing;
+import org.openwebnet.message.BaseOpenMessage;
+import org.openwebnet.message.OpenMessageFactory;
+
+/**
+ * The {@link OpenWebNetRoutingIndexBenchmark} compares the routing of received BUS frames to device handlers with the
+ * ownId string path (<code>ownIdFromMessage()</code> + map lookup, as before {@link OpenWebNetRoutingIndex}) and with
+ * {@link OpenWebNetRoutingIndex#lookup(BaseOpenMessage)}, on an installation with point-to-point, local bus and thermo
+ * devices and a mix of point-to-point, local bus, area, group and general frames. Prints time and allocated bytes per
+ * lookup for each path.
+ * <p>
+ * Run as a plain Java application with the binding, openwebnet-lib and openHAB core on the classpath:
+ * <code>java org.openhab.binding.openwebnet.handler.OpenWebNetRoutingIndexBenchmark [rounds]</code>
+ *
+ * @author Massimo Valla - Initial contribution
+ */
+public class OpenWebNetRoutingIndexBenchmark {
+
+    private static final int WARMUP_ROUNDS = 20000;
+    private static final int DEFAULT_ROUNDS = 200000;
+    private static final int PASSES = 3; // paths are run alternately: the first pass includes JIT compilation
+
+    private static final String[] FRAMES = { //
+            "*1*1*11##", "*1*0*37##", "*1*1*0315##", "*1*0*1012##", // point-to-point (AP, APL)
+            "*1*1*25#4#01##", "*1*0*38#4#02##", "*2*1*61##", "*2*0*73#4#01##", // local bus, automation
+            "*4*1*#1##", "*4*0*3#2##", "*#4*12*0*0215##", // thermo zone (central unit, actuator, temperature)
+            "*1*1*5##", "*1*0*#3##", "*1*1*0##", "*1*0*#7#4#01##", "*2*2*4##", // area, group, general
+            "*1*1*99##", "*1*1*59#4#03##" }; // not registered
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROUNDS;
+
+        Map<String, OpenWebNetThingHandler> registeredDevices = new ConcurrentHashMap<>();
+        OpenWebNetRoutingIndex routingIndex = new OpenWebNetRoutingIndex();
+        for (String ownId : ownIds()) {
+            OpenWebNetThingHandler handler = new OpenWebNetGenericHandler(thing());
+            registeredDevices.put(ownId, handler);
+            routingIndex.put(ownId, handler);
+        }
+        BaseOpenMessage[] msgs = new BaseOpenMessage[FRAMES.length];
+        for (int i = 0; i < FRAMES.length; i++) {
+            msgs[i] = (BaseOpenMessage) OpenMessageFactory.parse(FRAMES[i]);
+            msgs[i].getWhere(); // WHERE is parsed once by the message, for both paths
+            if (stringLookup(registeredDevices, msgs[i]) != routingIndex.lookup(msgs[i])) {
+                throw new IllegalStateException("paths disagree for frame " + FRAMES[i]);
+            }
+        }
+        System.out.printf("%d devices, %d frames, %d rounds%n", registeredDevices.size(), msgs.length, rounds);
+
+        for (int pass = 1; pass <= PASSES; pass++) {
+            System.out.printf("pass %d%n", pass);
+            run("ownId string + map", rounds, msgs, msg -> stringLookup(registeredDevices, msg));
+            run("routing index", rounds, msgs, routingIndex::lookup);
+        }
+    }
+
+    private interface Lookup {
+        Object lookup(BaseOpenMessage msg);
+    }
+
+    /**
+     * The ownId string path: OpenWebNetBridgeHandler.ownIdFromMessage() and getDevice() on a BUS gateway
+     */
+    private static Object stringLookup(Map<String, OpenWebNetThingHandler> devices, BaseOpenMessage msg) {
+        return devices.get(msg.getWho().value() + "." + OpenWebNetBridgeHandler.normalizeBusWhere(msg.getWhere()));
+    }
+
+    private static void run(String name, int rounds, BaseOpenMessage[] msgs, Lookup lookup) {
+        for (int r = 0; r < WARMUP_ROUNDS; r++) {
+            for (BaseOpenMessage msg : msgs) {
+                sink = lookup.lookup(msg);
+            }
+        }
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        int found = 0;
+        for (int r = 0; r < rounds; r++) {
+            for (BaseOpenMessage msg : msgs) {
+                Object handler = lookup.lookup(msg);
+                if (handler != null) {
+                    found++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = allocatedBytes() - bytesBefore;
+        long lookups = (long) rounds * msgs.length;
+        sink = found;
+        System.out.printf("%-20s %8.1f ns/lookup %8.1f bytes/lookup (%d found)%n", name, (double) elapsed / lookups,
+                bytes < 0 ? Double.NaN : (double) bytes / lookups, found / rounds);
+    }
+
+    /**
+     * Returns bytes allocated by the current thread, or -1 if not supported by the JVM
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * ownIds of a medium installation: lights and shutters on the main bus (AP and APL addresses) and on local buses,
+     * thermo zones
+     */
+    private static List<String> ownIds() {
+        List<String> ownIds = new ArrayList<>();
+        for (int a = 1; a <= 9; a++) {
+            for (int p = 1; p <= 9; p++) {
+                ownIds.add("1." + a + p);
+                ownIds.add("2." + a + p);
+            }
+        }
+        for (int a = 1; a <= 10; a++) {
+            for (int pl = 10; pl <= 15; pl++) {
+                ownIds.add("1." + (a < 10 ? "0" : "") + a + pl);
+            }
+        }
+        for (int bus = 1; bus <= 3; bus++) {
+            for (int ap = 21; ap <= 39; ap++) {
+                ownIds.add("1." + ap + "#4#0" + bus);
+                ownIds.add("2." + (ap + 40) + "#4#0" + bus);
+            }
+        }
+        for (int zone = 1; zone <= 20; zone++) {
+            ownIds.add("4." + zone);
+        }
+        return ownIds;
+    }
+
+    private static Thing thing() {
+        return (Thing) Proxy.newProxyInstance(Thing.class.getClassLoader(), new Class<?>[] { Thing.class },
+                (proxy, method, methodArgs) -> null);
+    }
+}